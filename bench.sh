@@ -0,0 +1,8 @@
+#!/bin/sh
+
+BENCH=${1:-ResolverBench}
+[ $# -gt 0 ] && shift
+rm -rf build/bench
+mkdir -p build/bench
+javac -d build/bench --module-path lib/main --module-source-path "src/main/java:src/bench/java" --module org.jpm,org.jpm.bench --release 11
+java $JAVA_OPTS --module-path="lib/main:build/bench" -m org.jpm.bench/org.jpm.bench.$BENCH "$@"
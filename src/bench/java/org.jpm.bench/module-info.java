@@ -0,0 +1,5 @@
+module org.jpm.bench {
+    requires org.jpm;
+    requires org.objectweb.asm;
+    requires commons.net;
+}
@@ -0,0 +1,204 @@
+package org.jpm.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Runs each benchmark for a number of timed warmup and measurement iterations
+// and reports the average time per operation. Results are written in the
+// same JSON layout as JMH's -rf json, so the usual JMH visualizers read them.
+//
+//   -Djpm.bench.warmup=<iterations>      (default 3)
+//   -Djpm.bench.iterations=<iterations>  (default 5)
+//   -Djpm.bench.time=<ms per iteration>  (default 500)
+//   -Djpm.bench.filter=<regex>           only run matching benchmarks
+//   -Djpm.bench.output=<file>            (default build/bench/<suite>.json)
+public class Harness {
+    public interface Benchmark {
+        Object run() throws Exception;
+    }
+
+    // Runs untimed before every invocation, for benchmarks of cold caches
+    public interface Setup {
+        void run() throws Exception;
+    }
+
+    private static class Result {
+        String _name;
+        Map<String, Object> _params;
+        double[] _scores;
+    }
+
+    private static volatile int _sink;
+
+    private String _suite;
+    private int _warmup = Integer.getInteger("jpm.bench.warmup", 3);
+    private int _iterations = Integer.getInteger("jpm.bench.iterations", 5);
+    private long _iterationNanos = Long.getLong("jpm.bench.time", 500) * 1000000;
+    private Pattern _filter;
+    private List<Result> _results = new ArrayList<>();
+
+    public Harness(String suite) {
+        _suite = suite;
+        var filter = System.getProperty("jpm.bench.filter");
+        _filter = filter == null ? null : Pattern.compile(filter);
+    }
+
+    public static Map<String, Object> params(Object... keysAndValues) {
+        var params = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            params.put((String)keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    public boolean isEnabled(String name) {
+        return _filter == null || _filter.matcher(_suite + "." + name).find();
+    }
+
+    private static void consume(Object value) {
+        if (value != null) {
+            _sink += value.hashCode();
+        }
+    }
+
+    // Returns the average nanoseconds per invocation over one iteration
+    private double iteration(Setup setup, Benchmark benchmark) throws Exception {
+        long elapsed = 0;
+        long count = 0;
+        if (setup != null) {
+            while (elapsed < _iterationNanos || count == 0) {
+                setup.run();
+                long start = System.nanoTime();
+                consume(benchmark.run());
+                elapsed += System.nanoTime() - start;
+                count++;
+            }
+            return (double)elapsed / count;
+        }
+        long batch = 1;
+        long deadline = System.nanoTime() + _iterationNanos;
+        long start = System.nanoTime();
+        for (;;) {
+            for (long i = 0; i < batch; i++) {
+                consume(benchmark.run());
+            }
+            count += batch;
+            long now = System.nanoTime();
+            if (now >= deadline) {
+                return (double)(now - start) / count;
+            }
+            batch = Math.min(batch * 2, 1 << 20);
+        }
+    }
+
+    public void measure(String name, Map<String, Object> params, Benchmark benchmark) {
+        measure(name, params, null, benchmark);
+    }
+
+    public void measure(String name, Map<String, Object> params, Setup setup, Benchmark benchmark) {
+        if (!isEnabled(name)) {
+            return;
+        }
+        var result = new Result();
+        result._name = name;
+        result._params = params;
+        result._scores = new double[_iterations];
+        try {
+            for (int i = 0; i < _warmup; i++) {
+                iteration(setup, benchmark);
+            }
+            for (int i = 0; i < _iterations; i++) {
+                result._scores[i] = iteration(setup, benchmark);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Benchmark " + name + " " + params + " failed: " + e, e);
+        }
+        _results.add(result);
+        System.out.println(String.format("%-32s %-28s %14.1f +- %10.1f ns/op", name, params, getMean(result._scores), getError(result._scores)));
+    }
+
+    private static double getMean(double[] scores) {
+        return Arrays.stream(scores).average().orElse(0);
+    }
+
+    // Half width of the 99.9% confidence interval, assuming normal noise
+    private static double getError(double[] scores) {
+        if (scores.length < 2) {
+            return Double.NaN;
+        }
+        double mean = getMean(scores);
+        double sum = 0;
+        for (var score: scores) {
+            sum += (score - mean) * (score - mean);
+        }
+        return 3.29 * Math.sqrt(sum / (scores.length - 1)) / Math.sqrt(scores.length);
+    }
+
+    private static void appendString(StringBuilder str, String value) {
+        str.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+
+    private static void appendNumber(StringBuilder str, double value) {
+        str.append(Double.isNaN(value) ? "\"NaN\"" : String.valueOf(value));
+    }
+
+    public String toJson() {
+        var str = new StringBuilder("[\n");
+        for (int i = 0; i < _results.size(); i++) {
+            var result = _results.get(i);
+            str.append("    {\n        \"benchmark\" : ");
+            appendString(str, "org.jpm.bench." + _suite + "." + result._name);
+            str.append(",\n        \"mode\" : \"avgt\",\n        \"threads\" : 1,\n        \"forks\" : 1");
+            str.append(",\n        \"jvm\" : ");
+            appendString(str, Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            str.append(",\n        \"jdkVersion\" : ");
+            appendString(str, System.getProperty("java.version"));
+            str.append(",\n        \"vmName\" : ");
+            appendString(str, System.getProperty("java.vm.name"));
+            str.append(",\n        \"warmupIterations\" : ").append(_warmup);
+            str.append(",\n        \"warmupTime\" : \"").append(_iterationNanos / 1000000).append(" ms\"");
+            str.append(",\n        \"measurementIterations\" : ").append(_iterations);
+            str.append(",\n        \"measurementTime\" : \"").append(_iterationNanos / 1000000).append(" ms\"");
+            str.append(",\n        \"params\" : {");
+            int index = 0;
+            for (var param: result._params.entrySet()) {
+                str.append(index++ == 0 ? "\n" : ",\n").append("            ");
+                appendString(str, param.getKey());
+                str.append(" : ");
+                appendString(str, String.valueOf(param.getValue()));
+            }
+            str.append("\n        },\n        \"primaryMetric\" : {\n            \"score\" : ");
+            appendNumber(str, getMean(result._scores));
+            str.append(",\n            \"scoreError\" : ");
+            appendNumber(str, getError(result._scores));
+            str.append(",\n            \"scoreUnit\" : \"ns/op\",\n            \"rawData\" : [\n                [");
+            for (int j = 0; j < result._scores.length; j++) {
+                str.append(j == 0 ? "" : ", ");
+                appendNumber(str, result._scores[j]);
+            }
+            str.append("]\n            ]\n        }\n    }").append(i + 1 < _results.size() ? ",\n" : "\n");
+        }
+        return str.append("]\n").toString();
+    }
+
+    public void write() {
+        var output = Path.of(System.getProperty("jpm.bench.output", "build/bench/" + _suite + ".json"));
+        try {
+            if (output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            Files.write(output, toJson().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Wrote " + _results.size() + " results to " + output);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + output + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.jpm.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.jpm.BuildCommand;
+import org.jpm.DependencyDetector;
+import org.jpm.GetCommand;
+import org.jpm.JpmDatabase;
+import org.jpm.JpmFile;
+import org.jpm.ModuleInfoParser;
+import org.jpm.Project;
+import org.jpm.ResolutionSession;
+import org.jpm.Resolver;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import static org.jpm.bench.Harness.params;
+
+// Benchmarks the per-command hot paths of jpm on synthetic projects created
+// in a temporary directory, and closure resolution against an in-memory
+// SQLite metadata database.
+public class HotPathBench {
+    private static final int ROOTS = 32;
+
+    private Harness _harness = new Harness("HotPathBench");
+    private Path _root;
+    private int _touched;
+
+    private static final ModuleInfoParser.ModuleVisitor NOP_VISITOR = new ModuleInfoParser.ModuleVisitor() {
+        public void visitModule(int modifiers, String name) {}
+        public void visitRequires(int modifiers, String module) {}
+        public void visitExports(String packaze, List<String> toModules) {}
+        public void visitOpens(String packaze, List<String> toModules) {}
+        public void visitUses(String service) {}
+        public void visitProvides(String service, List<String> providers) {}
+    };
+
+    private static JpmFile createJpmFile(int dependencies) {
+        var jpm = JpmFile.createJpmFile("org.bench.main", "1.2.3");
+        for (int i = 0; i < dependencies; i++) {
+            jpm.getMainDependencies().add(new JpmFile.JpmReference("org.bench-lib.m" + i, "1." + (i % 7) + "." + (i % 13)));
+        }
+        return jpm;
+    }
+
+    private static String createModuleInfo(int requires) {
+        var str = new StringBuilder("// Generated for HotPathBench\nmodule com.bench {\n");
+        for (int i = 0; i < requires; i++) {
+            str.append("    requires ").append(i % 5 == 0 ? "transitive " : "").append("bench.m").append(i).append(";\n");
+        }
+        for (int i = 0; i < requires / 4; i++) {
+            str.append("    exports com.bench.p").append(i).append(";\n");
+        }
+        str.append("    uses com.bench.spi.Service;\n");
+        str.append("    provides com.bench.spi.Service with com.bench.p0.Provider;\n}\n");
+        return str.toString();
+    }
+
+    private static byte[] createModuleInfoClass(String name, String version) {
+        var writer = new ClassWriter(0);
+        writer.visit(Opcodes.V11, Opcodes.ACC_MODULE, "module-info", null, null, null);
+        var module = writer.visitModule(name, 0, version);
+        module.visitRequire("java.base", Opcodes.ACC_MANDATED, null);
+        module.visitPackage(name.replace('.', '/'));
+        module.visitExport(name.replace('.', '/'), 0);
+        module.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static byte[] createClass(String className, boolean hasMain) {
+        var writer = new ClassWriter(0);
+        writer.visit(Opcodes.V11, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+        var method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, hasMain ? "main" : "run", "([Ljava/lang/String;)V", null, null);
+        method.visitCode();
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 1);
+        method.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    // A project named com.bench with the given number of modular jars in
+    // lib/main, half of them required from its module-info.java, and the
+    // given number of compiled classes of which one has a main method
+    private Project createProject(String name, int jars, int classes) throws IOException {
+        var projectPath = _root.resolve(name);
+        Files.createDirectories(projectPath.resolve(".git"));
+        var modulePath = projectPath.resolve("src/main/java/com.bench");
+        Files.createDirectories(modulePath);
+        Files.write(modulePath.resolve("module-info.java"), createModuleInfo(jars / 2).getBytes(StandardCharsets.UTF_8));
+        var project = new Project(projectPath);
+        for (int i = 0; i < jars; i++) {
+            var version = "1.0." + i;
+            var jarPath = project.getLibraryPath().resolve("main").resolve("bench.m" + i + "-" + version + ".jar");
+            try (var jar = new JarOutputStream(Files.newOutputStream(jarPath))) {
+                jar.putNextEntry(new JarEntry("module-info.class"));
+                jar.write(createModuleInfoClass("bench.m" + i, version));
+                jar.closeEntry();
+            }
+        }
+        var classesPath = project.getBuildPath().resolve("com.bench");
+        for (int i = 0; i < classes; i++) {
+            var className = "com/bench/p" + (i / 50) + "/C" + i;
+            var classFile = classesPath.resolve(className + ".class");
+            Files.createDirectories(classFile.getParent());
+            Files.write(classFile, createClass(className, i == classes / 2));
+        }
+        return project;
+    }
+
+    private void benchJpmFile() {
+        for (var dependencies: new int[] { 10, 100, 1000 }) {
+            var jpm = createJpmFile(dependencies);
+            var text = jpm.toString();
+            _harness.measure("jpmFile.fromFile", params("dependencies", dependencies), () -> JpmFile.fromFile(text));
+            _harness.measure("jpmFile.toString", params("dependencies", dependencies), () -> jpm.toString());
+        }
+    }
+
+    private void benchVersionCompare() {
+        var random = new Random(42);
+        var versions = new String[1024];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = random.nextInt(4) + "." + random.nextInt(20) + "." + random.nextInt(100);
+        }
+        var index = new int[1];
+        _harness.measure("versionCompareTo", params(), () -> {
+            int i = index[0]++ & (versions.length - 1);
+            return GetCommand.versionCompareTo(versions[i], versions[(i + 1) & (versions.length - 1)]);
+        });
+    }
+
+    private void benchModuleInfoParser() throws IOException {
+        for (var requires: new int[] { 10, 200 }) {
+            var path = _root.resolve("module-info-" + requires).resolve("module-info.java");
+            Files.createDirectories(path.getParent());
+            Files.write(path, createModuleInfo(requires).getBytes(StandardCharsets.UTF_8));
+            _harness.measure("moduleInfoParser.parse", params("requires", requires, "cache", "cold"),
+                             () -> path.toFile().setLastModified(++_touched * 1000L),
+                             () -> { ModuleInfoParser.parse(path, NOP_VISITOR); return null; });
+            _harness.measure("moduleInfoParser.parse", params("requires", requires, "cache", "warm"),
+                             () -> { ModuleInfoParser.parse(path, NOP_VISITOR); return null; });
+        }
+    }
+
+    private void benchDependencyDetector() throws IOException {
+        for (var jars: new int[] { 10, 100, 500 }) {
+            var project = createProject("detector-" + jars, jars, 0);
+            var cachePath = project.getStatePath().resolve("modules.cache");
+            _harness.measure("dependencyDetector.new", params("jars", jars, "catalog", "cold"),
+                             () -> Files.deleteIfExists(cachePath),
+                             () -> new DependencyDetector(project));
+            _harness.measure("dependencyDetector.new", params("jars", jars, "catalog", "warm"),
+                             () -> new DependencyDetector(project));
+        }
+    }
+
+    private void benchMainClass() throws IOException {
+        for (var classes: new int[] { 100, 1000, 5000 }) {
+            var project = createProject("classes-" + classes, 0, classes);
+            var build = new BuildCommand(project, new ResolutionSession(true));
+            var indexPath = project.getStatePath().resolve("classes.index");
+            _harness.measure("buildCommand.getMainClass", params("classes", classes, "index", "cold"),
+                             () -> Files.deleteIfExists(indexPath),
+                             () -> build.getMainClass());
+            _harness.measure("buildCommand.getMainClass", params("classes", classes, "index", "warm"),
+                             () -> build.getMainClass());
+        }
+    }
+
+    private void benchClosure() {
+        if (!_harness.isEnabled("closure.query") && !_harness.isEnabled("closure.resolve")) {
+            return;
+        }
+        var roots = new ArrayList<JpmFile.JpmReference>();
+        for (int i = 0; i < ROOTS; i++) {
+            roots.add(new JpmFile.JpmReference("p" + i, "1.0.0"));
+        }
+        for (var nodes: new int[] { 1250, 5000 }) {
+            // The shared cache keeps the in-memory database alive while the populating connection is open
+            var url = "jdbc:sqlite:file:jpmbench" + nodes + "?mode=memory&cache=shared";
+            var holder = new JpmDatabase(url, null);
+            try {
+                holder.addJpms(new ResolverBench(nodes, 42).getJpmFiles());
+            } catch (RuntimeException e) {
+                System.out.println("Skipping closure benchmarks, no SQLite database: " + e.getMessage());
+                holder.close();
+                return;
+            }
+            _harness.measure("closure.query", params("nodes", nodes), () -> {
+                var db = new JpmDatabase(url, null);
+                try {
+                    return db.getJpmClosure(roots).size();
+                } finally {
+                    db.close();
+                }
+            });
+            _harness.measure("closure.resolve", params("nodes", nodes), () -> {
+                var db = new JpmDatabase(url, null);
+                try {
+                    var session = new ResolutionSession(db);
+                    session.getClosure(roots);
+                    return new Resolver(session).resolve("bench", roots).size();
+                } finally {
+                    db.close();
+                }
+            });
+            holder.close();
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        var bench = new HotPathBench();
+        bench._root = Files.createTempDirectory("jpm-bench");
+        try {
+            bench.benchJpmFile();
+            bench.benchVersionCompare();
+            bench.benchModuleInfoParser();
+            bench.benchDependencyDetector();
+            bench.benchMainClass();
+            bench.benchClosure();
+        } finally {
+            delete(bench._root);
+        }
+        bench._harness.write();
+    }
+}
@@ -0,0 +1,382 @@
+package org.jpm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.jpm.FTPConfig;
+import org.jpm.FtpSessionPool;
+import org.jpm.JpmDatabase;
+import org.jpm.JpmFile;
+import org.jpm.MySQLConfig;
+import org.jpm.ServeCommand;
+
+// Runs concurrent get and publish clients against a repository and reports
+// latency percentiles and throughput per operation. A get resolves the
+// closure of a random artifact and downloads its jars; a publish uploads a
+// new jar and registers it. Each client keeps one FTP session and one
+// database connection, like a long-running build daemon.
+//
+// By default the target is a local stand-in started with a fresh directory
+// (see jpm serve). With -Djpm.load.remote=true the configured repository is
+// used instead, and the seeded and published load artifacts stay there.
+//
+//   ./bench.sh LoadBench [clients] [seconds]
+//   -Djpm.load.publishRatio=<0..1>   (default 0.1)
+//   -Djpm.load.artifacts=<count>     seeded names, with 3-4 versions each (default 500)
+//   -Djpm.load.jarSize=<bytes>       (default 65536)
+//   -Djpm.load.maxDownloads=<count>  jars downloaded per get (default 16)
+//   -Djpm.load.warmup=<seconds>      (default 3)
+public class LoadBench {
+    private static final String[] OPERATIONS = {
+        "get", "get.query", "get.download", "publish", "publish.upload", "publish.register"
+    };
+
+    private static class Latencies {
+        long[] _nanos = new long[1024];
+        int _count;
+        int _errors;
+
+        void add(long nanos) {
+            if (_count == _nanos.length) {
+                _nanos = Arrays.copyOf(_nanos, _count * 2);
+            }
+            _nanos[_count++] = nanos;
+        }
+
+        void addAll(Latencies other) {
+            for (int i = 0; i < other._count; i++) {
+                add(other._nanos[i]);
+            }
+            _errors += other._errors;
+        }
+
+        // Nearest rank percentile in milliseconds
+        double getPercentile(double percentile) {
+            if (_count == 0) {
+                return Double.NaN;
+            }
+            var sorted = Arrays.copyOf(_nanos, _count);
+            Arrays.sort(sorted);
+            int rank = (int)Math.ceil(percentile * _count);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+
+    private int _clients;
+    private int _seconds;
+    private double _publishRatio = Double.parseDouble(System.getProperty("jpm.load.publishRatio", "0.1"));
+    private int _artifacts = Integer.getInteger("jpm.load.artifacts", 500);
+    private int _jarSize = Integer.getInteger("jpm.load.jarSize", 65536);
+    private int _maxDownloads = Integer.getInteger("jpm.load.maxDownloads", 16);
+    private int _warmupSeconds = Integer.getInteger("jpm.load.warmup", 3);
+    private boolean _remote = Boolean.getBoolean("jpm.load.remote");
+    private String _databaseUrl;
+    private List<JpmFile> _seeded;
+    private byte[] _payload;
+    private AtomicLong _downloadedBytes = new AtomicLong();
+    private volatile long _measureStart;
+    private volatile long _measureEnd;
+
+    public LoadBench(int clients, int seconds) {
+        _clients = clients;
+        _seconds = seconds;
+        _payload = new byte[_jarSize];
+        new Random(42).nextBytes(_payload);
+    }
+
+    private JpmDatabase openDatabase() {
+        if (_databaseUrl != null) {
+            return new JpmDatabase(_databaseUrl, null);
+        }
+        // Query the server itself rather than the local metadata snapshot
+        var db = JpmDatabase.remoteDatabase();
+        db.setSnapshotPath(null);
+        return db;
+    }
+
+    private static String getRemoteFileName(JpmFile jpm) {
+        return "jpm/" + jpm.getMain().getName() + "-" + jpm.getMain().getVersion() + ".jar";
+    }
+
+    private void upload(FTPClient ftp, String remoteFileName) throws IOException {
+        if (!ftp.storeFile(remoteFileName, new ByteArrayInputStream(_payload))) {
+            throw new IOException("FTP server refused " + remoteFileName + ": " + ftp.getReplyString().trim());
+        }
+    }
+
+    private void seed() {
+        _seeded = new ResolverBench(_artifacts, 42).getJpmFiles();
+        long start = System.nanoTime();
+        int sessions = Math.min(8, _clients);
+        var pool = Executors.newFixedThreadPool(sessions);
+        try {
+            var pending = new ArrayList<Future<?>>();
+            for (int s = 0; s < sessions; s++) {
+                int first = s;
+                pending.add(pool.submit(() -> {
+                    var ftp = FtpSessionPool.connect();
+                    try {
+                        for (int i = first; i < _seeded.size(); i += sessions) {
+                            upload(ftp, getRemoteFileName(_seeded.get(i)));
+                        }
+                    } finally {
+                        FtpSessionPool.disconnect(ftp);
+                    }
+                    return null;
+                }));
+            }
+            for (var future: pending) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Could not seed repository: " + e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+        }
+        try (var db = openDatabase()) {
+            db.addJpms(_seeded);
+        }
+        System.out.println("Seeded " + _seeded.size() + " artifacts of " + _jarSize / 1024 + " KB in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    private void record(Map<String, Latencies> latencies, String operation, long start, long end) {
+        if (start >= _measureStart && end <= _measureEnd) {
+            latencies.get(operation).add(end - start);
+        }
+    }
+
+    private void fail(Map<String, Latencies> latencies, String operation, long start) {
+        if (start >= _measureStart && start <= _measureEnd) {
+            latencies.get(operation)._errors++;
+        }
+    }
+
+    private void get(Map<String, Latencies> latencies, Random random, JpmDatabase db, FTPClient ftp) throws IOException {
+        var root = _seeded.get(random.nextInt(_seeded.size())).getMain();
+        long start = System.nanoTime();
+        var closure = db.getJpmClosure(List.of(new JpmFile.JpmReference(root.getName(), root.getVersion())));
+        long queried = System.nanoTime();
+        record(latencies, "get.query", start, queried);
+        int downloads = 0;
+        for (var jpm: closure.values()) {
+            if (downloads++ == _maxDownloads) {
+                break;
+            }
+            var counter = new OutputStream() {
+                long _bytes;
+                public void write(int b) {
+                    _bytes++;
+                }
+                public void write(byte[] b, int off, int len) {
+                    _bytes += len;
+                }
+            };
+            long downloadStart = System.nanoTime();
+            if (!ftp.retrieveFile(getRemoteFileName(jpm), counter)) {
+                throw new IOException("FTP server refused " + getRemoteFileName(jpm) + ": " + ftp.getReplyString().trim());
+            }
+            long downloadEnd = System.nanoTime();
+            record(latencies, "get.download", downloadStart, downloadEnd);
+            if (downloadStart >= _measureStart && downloadEnd <= _measureEnd) {
+                _downloadedBytes.addAndGet(counter._bytes);
+            }
+        }
+        record(latencies, "get", start, System.nanoTime());
+    }
+
+    private void publish(Map<String, Latencies> latencies, Random random, JpmDatabase db, FTPClient ftp, String name) throws IOException {
+        var jpm = JpmFile.createJpmFile(name, "1.0.0");
+        for (int i = 0; i < 2; i++) {
+            var dep = _seeded.get(random.nextInt(_seeded.size())).getMain();
+            jpm.getMainDependencies().add(new JpmFile.JpmReference(dep.getName(), dep.getVersion()));
+        }
+        long start = System.nanoTime();
+        upload(ftp, getRemoteFileName(jpm));
+        long uploaded = System.nanoTime();
+        record(latencies, "publish.upload", start, uploaded);
+        db.addJpms(List.of(jpm));
+        long end = System.nanoTime();
+        record(latencies, "publish.register", uploaded, end);
+        record(latencies, "publish", start, end);
+    }
+
+    private Map<String, Latencies> runClient(int client) {
+        var latencies = new LinkedHashMap<String, Latencies>();
+        for (var operation: OPERATIONS) {
+            latencies.put(operation, new Latencies());
+        }
+        var random = new Random(client);
+        JpmDatabase db = null;
+        FTPClient ftp = null;
+        int published = 0;
+        while (System.nanoTime() < _measureEnd) {
+            boolean isPublish = random.nextDouble() < _publishRatio;
+            long start = System.nanoTime();
+            try {
+                if (db == null) {
+                    db = openDatabase();
+                }
+                if (ftp == null) {
+                    ftp = FtpSessionPool.connect();
+                }
+                if (isPublish) {
+                    publish(latencies, random, db, ftp, "load.c" + client + ".n" + published++);
+                } else {
+                    get(latencies, random, db, ftp);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(latencies, isPublish ? "publish" : "get", start);
+                if (ftp != null) {
+                    FtpSessionPool.disconnect(ftp);
+                    ftp = null;
+                }
+                if (db != null) {
+                    db.close();
+                    db = null;
+                }
+            }
+        }
+        if (ftp != null) {
+            FtpSessionPool.disconnect(ftp);
+        }
+        if (db != null) {
+            db.close();
+        }
+        return latencies;
+    }
+
+    public Map<String, Latencies> run() {
+        seed();
+        var console = System.out;
+        console.println("Running " + _clients + " clients for " + _warmupSeconds + " s warmup and " + _seconds + " s (" +
+                        Math.round(_publishRatio * 100) + "% publishes)");
+        // Commands report every registration, keep that off the console while the load runs
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        var pool = Executors.newFixedThreadPool(_clients);
+        var total = new LinkedHashMap<String, Latencies>();
+        for (var operation: OPERATIONS) {
+            total.put(operation, new Latencies());
+        }
+        try {
+            long now = System.nanoTime();
+            _measureStart = now + _warmupSeconds * 1000000000L;
+            _measureEnd = _measureStart + _seconds * 1000000000L;
+            var pending = new ArrayList<Future<Map<String, Latencies>>>();
+            for (int client = 0; client < _clients; client++) {
+                int id = client;
+                pending.add(pool.submit(() -> runClient(id)));
+            }
+            for (var future: pending) {
+                for (var latencies: future.get().entrySet()) {
+                    total.get(latencies.getKey()).addAll(latencies.getValue());
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Load run failed: " + e.getMessage(), e);
+        } finally {
+            pool.shutdownNow();
+            System.setOut(console);
+        }
+        return total;
+    }
+
+    private String getTarget() {
+        return "ftp://" + FTPConfig._host + ":" + FTPConfig._port + " " + (_databaseUrl != null ? _databaseUrl.replaceAll("\\?.*", "") : MySQLConfig.getEndpoint());
+    }
+
+    private static void appendNumber(StringBuilder str, double value) {
+        str.append(Double.isNaN(value) ? "null" : String.format("%.3f", value));
+    }
+
+    private String report(Map<String, Latencies> total) {
+        var json = new StringBuilder("{\n    \"target\" : \"").append(getTarget()).append("\"");
+        json.append(",\n    \"clients\" : ").append(_clients);
+        json.append(",\n    \"seconds\" : ").append(_seconds);
+        json.append(",\n    \"publishRatio\" : ").append(_publishRatio);
+        json.append(",\n    \"artifacts\" : ").append(_seeded.size());
+        json.append(",\n    \"jarSize\" : ").append(_jarSize);
+        json.append(",\n    \"downloadBytesPerSecond\" : ").append(_downloadedBytes.get() / _seconds);
+        json.append(",\n    \"operations\" : [");
+        System.out.println(String.format("%-18s %8s %7s %10s %10s %10s %10s", "operation", "count", "errors", "ops/s", "p50 ms", "p99 ms", "max ms"));
+        int index = 0;
+        for (var entry: total.entrySet()) {
+            var latencies = entry.getValue();
+            double throughput = (double)latencies._count / _seconds;
+            double p50 = latencies.getPercentile(0.5);
+            double p99 = latencies.getPercentile(0.99);
+            double max = latencies.getPercentile(1);
+            System.out.println(String.format("%-18s %8d %7d %10.1f %10.2f %10.2f %10.2f", entry.getKey(), latencies._count, latencies._errors,
+                                             throughput, p50, p99, max));
+            json.append(index++ == 0 ? "\n" : ",\n");
+            json.append("        { \"name\" : \"").append(entry.getKey()).append("\", \"count\" : ").append(latencies._count);
+            json.append(", \"errors\" : ").append(latencies._errors).append(", \"throughput\" : ");
+            appendNumber(json, throughput);
+            json.append(", \"p50Millis\" : ");
+            appendNumber(json, p50);
+            json.append(", \"p99Millis\" : ");
+            appendNumber(json, p99);
+            json.append(", \"maxMillis\" : ");
+            appendNumber(json, max);
+            json.append(" }");
+        }
+        System.out.println(String.format("Downloaded %.1f MB/s", _downloadedBytes.get() / 1e6 / _seconds));
+        return json.append("\n    ]\n}\n").toString();
+    }
+
+    private static void delete(Path path) throws IOException {
+        try (var paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        var bench = new LoadBench(clients, seconds);
+        ServeCommand serve = null;
+        Path directory = null;
+        if (bench._remote) {
+            System.out.println("Publishing load test artifacts to " + bench.getTarget());
+        } else {
+            directory = Files.createTempDirectory("jpm-load");
+            serve = new ServeCommand(directory, 0);
+            serve.start();
+            FTPConfig._host = serve.getHost();
+            FTPConfig._port = serve.getFtpPort();
+            FTPConfig._user = ServeCommand.USER;
+            FTPConfig._password = ServeCommand.PASSWORD;
+            bench._databaseUrl = serve.getDatabaseUrl();
+        }
+        try {
+            var json = bench.report(bench.run());
+            var output = Path.of(System.getProperty("jpm.bench.output", "build/bench/LoadBench.json"));
+            if (output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            Files.write(output, json.getBytes(StandardCharsets.UTF_8));
+            System.out.println("Wrote " + output);
+        } finally {
+            if (serve != null) {
+                serve.close();
+                delete(directory);
+            }
+        }
+    }
+}
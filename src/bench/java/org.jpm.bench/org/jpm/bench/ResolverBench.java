@@ -0,0 +1,117 @@
+package org.jpm.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.jpm.JpmFile;
+import org.jpm.Resolver;
+import org.jpm.Version;
+
+public class ResolverBench implements Resolver.Provider {
+    private static final int WINDOW = 256;
+    private static final int DEGREE = 4;
+    private static final int ROOTS = 32;
+
+    private Map<String, TreeMap<Long, JpmFile>> _artifacts = new HashMap<>();
+    private int _edges;
+
+    public ResolverBench(int nodes, long seed) {
+        var random = new Random(seed);
+        var hasMajor2 = new boolean[nodes];
+        for (int i = 0; i < nodes; i++) {
+            hasMajor2[i] = i >= ROOTS && random.nextInt(10) == 0;
+        }
+        for (int i = 0; i < nodes; i++) {
+            var versions = new ArrayList<String>(List.of("1.0.0", "1.1.0", "1.2.0"));
+            if (hasMajor2[i]) {
+                versions.add("2.0.0");
+            }
+            for (var version: versions) {
+                var jpm = JpmFile.createJpmFile("p" + i, version);
+                int degree = i + 1 < nodes ? 1 + random.nextInt(2 * DEGREE - 1) : 0;
+                for (int d = 0; d < degree; d++) {
+                    int j = i + 1 + random.nextInt(Math.min(WINDOW, nodes - i - 1));
+                    String depVersion;
+                    if (hasMajor2[j] && (version.equals("1.2.0") || version.equals("2.0.0"))) {
+                        depVersion = "2.0.0";
+                    } else {
+                        depVersion = "1." + random.nextInt(3) + ".0";
+                    }
+                    jpm.getMainDependencies().add(new JpmFile.JpmReference("p" + j, depVersion));
+                    _edges++;
+                }
+                _artifacts.computeIfAbsent("p" + i, (k) -> new TreeMap<>()).put(Version.pack(version), jpm);
+            }
+        }
+    }
+
+    List<JpmFile> getJpmFiles() {
+        var jpms = new ArrayList<JpmFile>();
+        for (var versions: _artifacts.values()) {
+            jpms.addAll(versions.values());
+        }
+        return jpms;
+    }
+
+    public JpmFile getJpm(String name, String version) {
+        var versions = _artifacts.get(name);
+        return versions == null ? null : versions.get(Version.pack(version));
+    }
+
+    public JpmFile getLatestJpm(String name, int major, int minor) {
+        var versions = _artifacts.get(name);
+        if (versions == null) {
+            return null;
+        }
+        long low = Version.pack(Math.max(major, 0), Math.max(minor, 0), 0);
+        long high = major < 0 ? Long.MAX_VALUE : minor < 0 ? Version.pack(major + 1, 0, 0) : Version.pack(major, minor + 1, 0);
+        var entry = versions.lowerEntry(high);
+        return entry == null || entry.getKey() < low ? null : entry.getValue();
+    }
+
+    private static void verify(Map<String, JpmFile> selected) {
+        for (var jpm: selected.values()) {
+            for (var dep: jpm.getMainDependencies()) {
+                var other = selected.get(dep.getName());
+                long required = Version.pack(dep.getVersion());
+                long actual = other == null ? -1 : Version.pack(other.getMain().getVersion());
+                if (actual < required || Version.getMajor(actual) != Version.getMajor(required)) {
+                    throw new RuntimeException("Inconsistent resolution: " + jpm.getMain().getName() + " requires " +
+                                               dep.getName() + "-" + dep.getVersion() + " but got " + other);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = { 1250, 2500, 5000, 10000, 20000 };
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        for (var nodes: sizes) {
+            var bench = new ResolverBench(nodes, 42);
+            var roots = new ArrayList<JpmFile.JpmReference>();
+            for (int i = 0; i < ROOTS; i++) {
+                roots.add(new JpmFile.JpmReference("p" + i, "1.0.0"));
+            }
+            long best = Long.MAX_VALUE;
+            int selected = 0;
+            int selections = 0;
+            int upgrades = 0;
+            for (int i = 0; i < iterations; i++) {
+                var resolver = new Resolver(bench);
+                long start = System.nanoTime();
+                var resolution = resolver.resolve("bench", roots);
+                best = Math.min(best, System.nanoTime() - start);
+                verify(resolution);
+                selected = resolution.size();
+                selections = resolver.getSelectionCount();
+                upgrades = resolver.getUpgradeCount();
+            }
+            System.out.println(String.format("nodes=%d edges=%d selected=%d selections=%d upgrades=%d best=%.2f ms (%.0f ns/selection)",
+                                             nodes, bench._edges, selected, selections, upgrades, best / 1e6, (double)best / Math.max(1, selections)));
+        }
+    }
+}
@@ -8,4 +8,5 @@ module org.jpm {
     requires sqlite.jdbc;
     requires mysql.connector.java;
     requires java.sql;
+    requires jdk.jfr;
 }
@@ -1,132 +1,169 @@
 package org.jpm;
 
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.ClassNode;
+import java.util.jar.JarFile;
 
 public class BuildCommand {
     private Project _project;
+    private ResolutionSession _session;
     private DependencyDetector _deps;
-    private String _mainClass;
 
-    public BuildCommand() {
-        _project = new Project();
-        _deps = new DependencyDetector(_project);
+    public BuildCommand(Project project, ResolutionSession session) {
+        _project = project;
+        _session = session;
+        _deps = project.getDependencyDetector();
     }
 
-    public boolean getMainClass(Path path) {
-        try {
-            var in = new FileInputStream(path.toString());
-            var reader = new ClassReader(in);
-            var classNode = new ClassNode();
-            reader.accept(classNode, 0);
-            for (var method: classNode.methods) {
-                if (!method.name.equals("main")) {
-                    continue;
-                }
-                if (method.access != (Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC)) {
-                    continue;
-                }
-                return true;
-            }
-        } catch (Exception e) {
-            System.out.println("Exception at " + path + ": " + e);
+    public String getMainClass() {
+        var index = ClassIndex.of(_project);
+        index.update();
+        var mainClasses = index.getMainClasses();
+        if (mainClasses.isEmpty()) {
+            return null;
+        }
+        if (mainClasses.size() > 1) {
+            System.out.println("Found main classes " + mainClasses + ", using " + mainClasses.get(0) + " as Main-Class");
         }
-        return false;
+        return mainClasses.get(0);
     }
 
-    public String getMainClass(List<Path> classFiles) {
-        var moduleClassPath = _project.getBuildPath().resolve(_project.getProjectName());
-        var pool = Executors.newCachedThreadPool();
-        for (var file: classFiles) {
-            pool.submit(() -> {
-                if (getMainClass(file)) {
-                    _mainClass = moduleClassPath.relativize(file).toString().replaceAll("/", ".");
-                    _mainClass = _mainClass.substring(0, _mainClass.length() - 6);
-                }
-          });
+    private String getResolutionKey(JpmFile jpm) {
+        var inputs = new ArrayList<String>();
+        for (var jpmRef: jpm.getMainDependencies()) {
+            inputs.add(jpmRef.getName() + "-" + jpmRef.getVersion());
         }
-        pool.shutdown();
+        Collections.sort(inputs);
         try {
-          pool.awaitTermination(100, TimeUnit.DAYS);
-        } catch (InterruptedException e) {
+            var mainJpm = _project.getResourcePath().resolve("main.jpm");
+            inputs.add(mainJpm.toFile().exists() ? new String(Files.readAllBytes(mainJpm), StandardCharsets.UTF_8) : "");
+        } catch (IOException e) {
+            inputs.add("");
         }
-        return _mainClass;
+        return ResolutionCache.getKey("build", inputs, _session.getSequence());
     }
 
-    public String getMainClass() {
-        var moduleClassPath = _project.getBuildPath().resolve(_project.getProjectName());
-        List<Path> classFiles = new ArrayList<>();
-        try {
-            Files.walk(moduleClassPath).filter(Files::isRegularFile).forEach((file) -> {
-                    if (!file.toString().endsWith(".class")) {
-                        return;
+    private boolean isSatisfied(String name, String version) {
+        var dep = _deps.getDependency(name);
+        if (dep == null) {
+            return false;
+        }
+        if (dep.isSystem()) {
+            return true;
+        }
+        if (dep.getBinaryPath() == null || dep.getBinaryVersion() == null || version == null) {
+            return false;
+        }
+        int compare = GetCommand.versionCompareTo(dep.getBinaryVersion(), version);
+        return compare == 0 || compare == 1;
+    }
+
+    private boolean isSatisfiedLocally(JpmFile jpm) {
+        for (var jpmRef: jpm.getMainDependencies()) {
+            var dep = _deps.getDependency(jpmRef.getName());
+            if (dep == null || (!dep.isSystem() && (jpmRef.getVersion() == null || !jpmRef.getVersion().equals(dep.getBinaryVersion())))) {
+                return false;
+            }
+        }
+        for (var libType: List.of("main", "transitive")) {
+            var jars = _project.getLibraryPath().resolve(libType).toFile().listFiles();
+            if (jars == null) {
+                continue;
+            }
+            for (var jar: jars) {
+                if (!jar.getName().endsWith(".jar")) {
+                    continue;
+                }
+                try (var jarFile = new JarFile(jar)) {
+                    var jpmEntry = jarFile.getEntry("META-INF/jpm/main.jpm");
+                    if (jpmEntry == null) {
+                        continue;
                     }
-                    classFiles.add(file);
-                });
-        } catch (IOException e) {}
-        getMainClass(classFiles);
-        return _mainClass;
+                    try (var in = jarFile.getInputStream(jpmEntry)) {
+                        var embedded = JpmFile.parse(in);
+                        for (var jpmRef: embedded.getMainDependencies()) {
+                            if (!isSatisfied(jpmRef.getName(), jpmRef.getVersion())) {
+                                return false;
+                            }
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void resolve(JpmFile jpm) {
+        var jpmDeps = new ArrayList<JpmFile>();
+        for (var jpmRef: jpm.getMainDependencies()) {
+            var dep = _deps.getDependency(jpmRef.getName());
+            if (dep != null && dep.isSystem()) {
+                continue;
+            }
+            var jpmDep = _session.getJpm(jpmRef.getName(), jpmRef.getVersion());
+            if (jpmDep != null) {
+                jpmDeps.add(jpmDep);
+            }
+        }
+        new GetCommand(_project, _session, jpmDeps).run();
     }
 
     public void run() {
         String name = _project.getProjectName();
         String version = _project.getProjectVersion();
-        var jpmDeps = new ArrayList<JpmFile>();
         var jpm = _deps.getJpmFile();
-        try (var db = JpmDatabase.remoteDatabase()) {
-            for (var jpmRef: jpm.getMainDependencies()) {
-                var dep = _deps.getDependency(jpmRef.getName());
-                if (dep != null && dep.isSystem()) {
-                    continue;
-                }
-                JpmFile jpmDep = null;
-                if (jpmRef.getVersion() != null) {
-                    jpmDep = db.getJpm(jpmRef.getName(), jpmRef.getVersion());
+        var cache = ResolutionCache.of(_project);
+        var cached = cache.get(getResolutionKey(jpm));
+        try (var span = Profiler.phase("resolve")) {
+            if (cached != null) {
+                var missing = cache.getMissing(cached);
+                if (missing.isEmpty()) {
+                    System.out.println("Dependencies of " + name + " are unchanged, skipping resolution");
                 } else {
-                    jpmDep = db.getJpm(jpmRef.getName());
-                }
-                if (jpmDep != null) {
-                    jpmDeps.add(jpmDep);
+                    System.out.println("Restoring " + missing.size() + " dependencies of " + name + " from the cached resolution");
+                    new GetCommand(_project, _session, new ArrayList<>()).fetch(missing);
                 }
+            } else if (isSatisfiedLocally(jpm)) {
+                System.out.println("Dependencies of " + name + " are pinned and present, skipping resolution");
+            } else {
+                resolve(jpm);
             }
         }
-        new GetCommand(jpmDeps).run();
-        _deps = new DependencyDetector(_project);
-        var mainJpm = _project.getBuildPath().resolve(_project.getProjectName());
         var jpmFile = _deps.getJpmFile();
-        jpmFile.installDir(mainJpm);
         try {
             var mainJpmRes = _project.getResourcePath().resolve("main.jpm");
-            Files.write(mainJpmRes, jpmFile.toString().getBytes());
-            Files.walk(_project.getResourcePath())
-                        .filter(Files::isRegularFile)
-                        .forEach((file) -> {
-                            if (file.equals(mainJpmRes)) {
-                                return;
-                            }
-                            try {
-                                var dst = _project.getBuildPath().resolve(_project.getProjectName()).resolve(_project.getResourcePath().relativize(file));
-                                Files.copy(file, dst, StandardCopyOption.REPLACE_EXISTING);
-                                System.out.println("Copied resource " + file.toString() + " to " + dst.toString());
-                            } catch (IOException e) {
-                                System.out.println("Couldn't copy resource " + file.toString());
-                            }
-                        });
+            Files.write(mainJpmRes, jpmFile.toBytes());
         } catch (IOException e) {}
-        Cmd.run("javac -d build --module-path lib/main:lib/transitive --module-source-path src/main/java src/main/java/**/*.java --module " + name + " -source 11");
-        String mainClass = getMainClass();
-        Cmd.run("jar --create --module-version=" + version + " --file=build/" + name + "-" + version + ".jar --main-class=" + mainClass + " -C build/" + name + " .");
+        if (cached == null) {
+            cache.put(getResolutionKey(jpmFile), cache.listLibraries());
+        }
+        try (var span = Profiler.phase("resources")) {
+            ResourceSync.of(_project).sync();
+        }
+        try (var span = Profiler.phase("compile"); var compiler = new ModuleCompiler(_project)) {
+            if (!compiler.compileModule()) {
+                throw new RuntimeException("Compilation of " + name + " failed");
+            }
+        }
+        String mainClass;
+        try (var span = Profiler.phase("main-class")) {
+            mainClass = getMainClass();
+        }
+        var jarPath = _project.getBuildPath().resolve(_project.getProjectJarName());
+        try (var span = Profiler.phase("jar")) {
+            var jar = new JarWriter(jarPath);
+            jar.setModuleVersion(version);
+            jar.setMainClass(mainClass);
+            jar.addEntry("META-INF/jpm/main.jpm", jpmFile.toBytes());
+            jar.write(_project.getBuildPath().resolve(name));
+        }
+        System.out.println("Created " + jarPath);
         System.out.println(_deps.getDependencies());
     }
 }
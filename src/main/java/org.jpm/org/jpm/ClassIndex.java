@@ -0,0 +1,227 @@
+package org.jpm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.ModuleVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class ClassIndex {
+    private static final int SKIP_ALL = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+    static class Entry {
+        String _path;
+        long _size;
+        long _lastModified;
+        boolean _hasMain;
+        List<String[]> _provides = new ArrayList<>();
+    }
+
+    private Path _classesPath;
+    private Path _indexPath;
+    private Map<String, Entry> _entries = new TreeMap<>();
+    private int _scanned;
+
+    public ClassIndex(Path classesPath, Path indexPath) {
+        _classesPath = classesPath;
+        _indexPath = indexPath;
+    }
+
+    public static ClassIndex of(Project project) {
+        var classesPath = project.getBuildPath().resolve(project.getProjectName());
+        return new ClassIndex(classesPath, project.getStatePath().resolve("classes.index"));
+    }
+
+    public List<String> getMainClasses() {
+        var mainClasses = new ArrayList<String>();
+        for (var entry: _entries.values()) {
+            if (entry._hasMain) {
+                mainClasses.add(toClassName(entry._path));
+            }
+        }
+        return mainClasses;
+    }
+
+    public Map<String, List<String>> getProviders() {
+        var providers = new TreeMap<String, List<String>>();
+        for (var entry: _entries.values()) {
+            for (var provide: entry._provides) {
+                providers.computeIfAbsent(provide[0], (k) -> new ArrayList<>()).add(provide[1]);
+            }
+        }
+        return providers;
+    }
+
+    public List<String> getPackages() {
+        var packages = new TreeSet<String>();
+        for (var entry: _entries.values()) {
+            var className = toClassName(entry._path);
+            var dot = className.lastIndexOf('.');
+            if (dot > 0 && !entry._path.equals("module-info.class")) {
+                packages.add(className.substring(0, dot));
+            }
+        }
+        return new ArrayList<>(packages);
+    }
+
+    public int getScannedCount() {
+        return _scanned;
+    }
+
+    private static String toClassName(String path) {
+        return path.substring(0, path.length() - 6).replace('/', '.');
+    }
+
+    public static Entry scan(Path classFile) throws IOException {
+        var entry = new Entry();
+        var reader = new ClassReader(Files.readAllBytes(classFile));
+        reader.accept(new ClassVisitor(Opcodes.ASM7) {
+            @Override
+            public ModuleVisitor visitModule(String name, int access, String version) {
+                return new ModuleVisitor(Opcodes.ASM7) {
+                    @Override
+                    public void visitProvide(String service, String... providers) {
+                        for (var provider: providers) {
+                            entry._provides.add(new String[] { service.replace('/', '.'), provider.replace('/', '.') });
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                int mainAccess = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC;
+                if (name.equals("main") && descriptor.equals("([Ljava/lang/String;)V") && (access & mainAccess) == mainAccess) {
+                    entry._hasMain = true;
+                }
+                return null;
+            }
+        }, SKIP_ALL);
+        return entry;
+    }
+
+    private List<Path> getClassFiles() {
+        var classFiles = new ArrayList<Path>();
+        if (!_classesPath.toFile().exists()) {
+            return classFiles;
+        }
+        try (var files = Files.walk(_classesPath)) {
+            files.filter(Files::isRegularFile)
+                .filter((file) -> file.getFileName().toString().endsWith(".class"))
+                .forEach(classFiles::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list classes of " + _classesPath, e);
+        }
+        return classFiles;
+    }
+
+    public void update() {
+        load();
+        var previous = _entries;
+        _entries = new TreeMap<>();
+        _scanned = 0;
+        var pending = new HashMap<String, Future<Entry>>();
+        var pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            for (var classFile: getClassFiles()) {
+                var path = _classesPath.relativize(classFile).toString().replace(File.separatorChar, '/');
+                var file = classFile.toFile();
+                long size = file.length();
+                long lastModified = file.lastModified();
+                var entry = previous.get(path);
+                if (entry != null && entry._size == size && entry._lastModified == lastModified) {
+                    _entries.put(path, entry);
+                    continue;
+                }
+                pending.put(path, pool.submit(() -> {
+                    var scanned = scan(classFile);
+                    scanned._path = path;
+                    scanned._size = size;
+                    scanned._lastModified = lastModified;
+                    return scanned;
+                }));
+            }
+            for (var scanned: pending.entrySet()) {
+                try {
+                    _entries.put(scanned.getKey(), scanned.getValue().get());
+                    _scanned++;
+                } catch (ExecutionException e) {
+                    System.out.println("Could not index " + scanned.getKey() + ": " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while indexing " + _classesPath, e);
+        } finally {
+            pool.shutdownNow();
+        }
+        save();
+    }
+
+    public boolean load() {
+        _entries.clear();
+        if (!_indexPath.toFile().exists()) {
+            return false;
+        }
+        try {
+            Entry entry = null;
+            for (var line: Files.readAllLines(_indexPath, StandardCharsets.UTF_8)) {
+                var fields = line.split("\t", -1);
+                switch (fields[0]) {
+                case "class":
+                    entry = new Entry();
+                    entry._path = fields[1];
+                    entry._size = Long.parseLong(fields[2]);
+                    entry._lastModified = Long.parseLong(fields[3]);
+                    entry._hasMain = fields[4].equals("main");
+                    _entries.put(entry._path, entry);
+                    break;
+                case "provides":
+                    entry._provides.add(new String[] { fields[1], fields[2] });
+                    break;
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Discarding unreadable class index " + _indexPath);
+            _entries.clear();
+            return false;
+        }
+    }
+
+    private void save() {
+        var str = new StringBuilder();
+        for (var entry: _entries.values()) {
+            str.append("class\t").append(entry._path).append("\t").append(entry._size).append("\t");
+            str.append(entry._lastModified).append("\t").append(entry._hasMain ? "main" : "-").append("\n");
+            for (var provide: entry._provides) {
+                str.append("provides\t").append(provide[0]).append("\t").append(provide[1]).append("\n");
+            }
+        }
+        for (var packaze: getPackages()) {
+            str.append("package\t").append(packaze).append("\n");
+        }
+        try {
+            var tmp = _indexPath.resolveSibling(_indexPath.getFileName() + ".tmp");
+            Files.write(tmp, str.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, _indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save class index " + _indexPath + ": " + e);
+        }
+    }
+}
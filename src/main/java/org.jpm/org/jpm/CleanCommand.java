@@ -1,11 +1,16 @@
 package org.jpm;
 
 public class CleanCommand {
+    private Project _project;
+
+    public CleanCommand(Project project) {
+        _project = project;
+    }
+
     public void run() {
-        var proj = new Project();
-        var buildPath = proj.getBuildPath();
+        var buildPath = _project.getBuildPath();
         if (buildPath != null && buildPath.toFile().exists()) {
-            Cmd.run("rm -rf " + buildPath);
+            new Cmd("rm", "-rf", buildPath.toString()).setStreaming(true).execute();
         }
     }
 }
@@ -1,31 +1,243 @@
 package org.jpm;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+// Runs an external command with stdout and stderr drained on their own
+// threads, so neither pipe can fill up and block the child. Output is captured
+// and, when streaming, copied to the console as it arrives. Commands are killed
+// with their descendants when they exceed the timeout, are cancelled, or when
+// jpm exits.
 public class Cmd {
-    public static String run(String cmd) {
-        var processBuilder = new ProcessBuilder();
-        System.out.println("$ " + cmd);
-        processBuilder.command("sh", "-c", cmd);
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("jpm.cmd.timeout", 600));
+
+    public static class Result {
+        private int _exitCode;
+        private String _output;
+        private String _error;
+        private long _wallNanos;
+        private long _cpuNanos = -1;
+        private boolean _timedOut;
+        private boolean _cancelled;
+
+        public int getExitCode() {
+            return _exitCode;
+        }
+
+        public boolean isSuccess() {
+            return _exitCode == 0 && !_timedOut && !_cancelled;
+        }
+
+        public String getOutput() {
+            return _output;
+        }
+
+        public String getError() {
+            return _error;
+        }
+
+        public long getWallNanos() {
+            return _wallNanos;
+        }
+
+        // CPU time of the process itself as last observed while it ran, or -1
+        // if the platform does not report it
+        public long getCpuNanos() {
+            return _cpuNanos;
+        }
+
+        public boolean isTimedOut() {
+            return _timedOut;
+        }
+
+        public boolean isCancelled() {
+            return _cancelled;
+        }
+    }
+
+    private static final Set<Process> _running = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (var process: _running) {
+                kill(process);
+            }
+        }));
+    }
+
+    private List<String> _command;
+    private Path _directory;
+    private long _timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private boolean _streaming;
+    private volatile boolean _cancelled;
+    private volatile Process _process;
+
+    public Cmd(String... command) {
+        this(Arrays.asList(command));
+    }
+
+    public Cmd(List<String> command) {
+        _command = new ArrayList<>(command);
+    }
+
+    public static Cmd shell(String cmd) {
+        return new Cmd("sh", "-c", cmd);
+    }
+
+    public Cmd setDirectory(Path directory) {
+        _directory = directory;
+        return this;
+    }
+
+    // A timeout of 0 waits forever
+    public Cmd setTimeout(long timeoutMillis) {
+        _timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public Cmd setStreaming(boolean streaming) {
+        _streaming = streaming;
+        return this;
+    }
+
+    public void cancel() {
+        _cancelled = true;
+        var process = _process;
+        if (process != null) {
+            kill(process);
+        }
+    }
+
+    private static void kill(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private String getDisplayString() {
+        if (_command.size() == 3 && _command.get(0).equals("sh") && _command.get(1).equals("-c")) {
+            return _command.get(2);
+        }
+        return String.join(" ", _command);
+    }
+
+    private static Thread pump(InputStream in, ByteArrayOutputStream capture, PrintStream console) {
+        var thread = new Thread(() -> {
+            var buffer = new byte[8192];
+            try (in) {
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    synchronized (capture) {
+                        capture.write(buffer, 0, count);
+                    }
+                    if (console != null) {
+                        console.write(buffer, 0, count);
+                        console.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // The process was killed or closed its end of the pipe
+            }
+        }, "cmd-pump");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public Result execute() {
+        System.out.println("$ " + getDisplayString());
+        var result = new Result();
+        var processBuilder = new ProcessBuilder(_command);
+        if (_directory != null) {
+            processBuilder.directory(_directory.toFile());
+        }
+        long start = System.nanoTime();
+        Process process;
+        try {
+            process = processBuilder.start();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not run " + getDisplayString() + ": " + e.getMessage(), e);
+        }
+        _process = process;
+        _running.add(process);
         try {
-            var process = processBuilder.start();
-            var output = new StringBuilder();
-            var reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                output.append(line + "\n");
+            process.getOutputStream().close();
+            var output = new ByteArrayOutputStream();
+            var error = new ByteArrayOutputStream();
+            var outputPump = pump(process.getInputStream(), output, _streaming ? System.out : null);
+            var errorPump = pump(process.getErrorStream(), error, _streaming ? System.err : null);
+            long deadline = _timeoutMillis > 0 ? start + TimeUnit.MILLISECONDS.toNanos(_timeoutMillis) : Long.MAX_VALUE;
+            while (!process.waitFor(50, TimeUnit.MILLISECONDS)) {
+                var cpu = process.info().totalCpuDuration();
+                if (cpu.isPresent()) {
+                    result._cpuNanos = cpu.get().toNanos();
+                }
+                if (_cancelled) {
+                    result._cancelled = true;
+                    kill(process);
+                } else if (System.nanoTime() > deadline) {
+                    result._timedOut = true;
+                    kill(process);
+                }
+            }
+            outputPump.join(TimeUnit.SECONDS.toMillis(5));
+            errorPump.join(TimeUnit.SECONDS.toMillis(5));
+            result._exitCode = process.exitValue();
+            result._cancelled |= _cancelled;
+            synchronized (output) {
+                result._output = output.toString(Charset.defaultCharset());
             }
-            int exitValue = process.waitFor();
-            if (exitValue == 0) {
-                return output.toString();
+            synchronized (error) {
+                result._error = error.toString(Charset.defaultCharset());
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            kill(process);
+            throw new RuntimeException("Could not run " + getDisplayString() + ": " + e.getMessage(), e);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            kill(process);
+            Thread.currentThread().interrupt();
+            result._cancelled = true;
+            result._exitCode = -1;
+            result._output = "";
+            result._error = "";
+        } finally {
+            _running.remove(process);
+            _process = null;
+        }
+        result._wallNanos = System.nanoTime() - start;
+        if (result._timedOut) {
+            System.err.println("Killed " + getDisplayString() + " after " + _timeoutMillis + " ms");
+        } else if (!result.isSuccess()) {
+            System.err.println(getDisplayString() + (result._cancelled ? " was cancelled" : " failed with exit code " + result._exitCode) +
+                               " after " + result._wallNanos / 1000000 + " ms");
+        }
+        if (!result.isSuccess() && !_streaming && !result._error.isEmpty()) {
+            System.err.print(result._error);
+        }
+        return result;
+    }
+
+    public static String run(String cmd) {
+        return run(cmd, null);
+    }
+
+    // Returns stdout of the shell command, or null if it did not succeed
+    public static String run(String cmd, Path directory) {
+        try {
+            var result = shell(cmd).setDirectory(directory).execute();
+            return result.isSuccess() ? result.getOutput() : null;
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            return null;
         }
-        return null;
     }
 }
@@ -0,0 +1,294 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import java.util.regex.Pattern;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class CompileState {
+    public static class ClassEntry {
+        private String _name;
+        private String _source;
+        private Set<String> _dependencies;
+        private boolean _constants;
+
+        public ClassEntry(String name, String source, Set<String> dependencies, boolean constants) {
+            _name = name;
+            _source = source;
+            _dependencies = dependencies;
+            _constants = constants;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public String getSource() {
+            return _source;
+        }
+
+        public Set<String> getDependencies() {
+            return _dependencies;
+        }
+
+        // Whether the class declares compile-time constants, which javac
+        // inlines into users without leaving a reference to the class.
+        public boolean hasConstants() {
+            return _constants;
+        }
+    }
+
+    private static final Pattern REFERENCE = Pattern.compile("L([^;<]+)[;<]");
+
+    private Path _statePath;
+    private String _fingerprint;
+    private Map<String, String> _sourceHashes = new TreeMap<>();
+    private Map<String, ClassEntry> _classes = new TreeMap<>();
+
+    public CompileState(Path statePath) {
+        _statePath = statePath;
+    }
+
+    public String getFingerprint() {
+        return _fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        _fingerprint = fingerprint;
+    }
+
+    public Map<String, String> getSourceHashes() {
+        return _sourceHashes;
+    }
+
+    public Map<String, ClassEntry> getClasses() {
+        return _classes;
+    }
+
+    public Set<String> getClassesOf(Collection<String> sources) {
+        var result = new HashSet<String>();
+        for (var entry: _classes.values()) {
+            if (sources.contains(entry.getSource())) {
+                result.add(entry.getName());
+            }
+        }
+        return result;
+    }
+
+    public boolean hasConstants(Set<String> classes) {
+        for (var name: classes) {
+            var entry = _classes.get(name);
+            if (entry != null && entry.hasConstants()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<String> getDependents(Set<String> classes) {
+        var dependents = new HashMap<String, List<String>>();
+        for (var entry: _classes.values()) {
+            for (var dependency: entry.getDependencies()) {
+                dependents.computeIfAbsent(dependency, (k) -> new ArrayList<>()).add(entry.getName());
+            }
+        }
+        var result = new HashSet<String>();
+        var stack = new LinkedList<String>(classes);
+        while (!stack.isEmpty()) {
+            var name = stack.pop();
+            for (var dependent: dependents.getOrDefault(name, List.of())) {
+                if (!classes.contains(dependent) && result.add(dependent)) {
+                    stack.add(dependent);
+                }
+            }
+        }
+        return result;
+    }
+
+    public static ClassEntry scan(Path classFile) throws IOException {
+        var reader = new ClassReader(Files.readAllBytes(classFile));
+        var dependencies = new TreeSet<String>();
+        var buffer = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            var offset = reader.getItem(i);
+            if (offset == 0) {
+                continue;
+            }
+            switch (reader.readByte(offset - 1)) {
+            case 7: // CONSTANT_Class
+                var className = reader.readUTF8(offset, buffer);
+                if (className.startsWith("[")) {
+                    addReferences(className, dependencies);
+                } else {
+                    dependencies.add(className);
+                }
+                break;
+            case 12: // CONSTANT_NameAndType
+                addReferences(reader.readUTF8(offset + 2, buffer), dependencies);
+                break;
+            case 16: // CONSTANT_MethodType
+                addReferences(reader.readUTF8(offset, buffer), dependencies);
+                break;
+            }
+        }
+        var sourceFile = new String[1];
+        var constants = new boolean[1];
+        var annotationVisitor = new AnnotationVisitor(Opcodes.ASM7) {};
+        reader.accept(new ClassVisitor(Opcodes.ASM7) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                addReferences(signature, dependencies);
+            }
+
+            @Override
+            public void visitSource(String source, String debug) {
+                sourceFile[0] = source;
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                addReferences(descriptor, dependencies);
+                return annotationVisitor;
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                if (value != null) {
+                    constants[0] = true;
+                }
+                addReferences(descriptor, dependencies);
+                addReferences(signature, dependencies);
+                return new FieldVisitor(Opcodes.ASM7) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                        addReferences(descriptor, dependencies);
+                        return annotationVisitor;
+                    }
+                };
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                addReferences(descriptor, dependencies);
+                addReferences(signature, dependencies);
+                return new MethodVisitor(Opcodes.ASM7) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                        addReferences(descriptor, dependencies);
+                        return annotationVisitor;
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_FRAMES);
+        var name = reader.getClassName();
+        dependencies.remove(name);
+        var slash = name.lastIndexOf('/');
+        var packagePath = slash < 0 ? "" : name.substring(0, slash + 1);
+        var source = sourceFile[0];
+        if (source == null) {
+            var outer = name.substring(slash + 1);
+            var dollar = outer.indexOf('$');
+            source = (dollar < 0 ? outer : outer.substring(0, dollar)) + ".java";
+        }
+        return new ClassEntry(name, packagePath + source, dependencies, constants[0]);
+    }
+
+    private static void addReferences(String descriptor, Set<String> dependencies) {
+        if (descriptor == null) {
+            return;
+        }
+        var matcher = REFERENCE.matcher(descriptor);
+        while (matcher.find()) {
+            dependencies.add(matcher.group(1));
+        }
+    }
+
+    public boolean load() {
+        var path = _statePath;
+        if (!path.toFile().exists()) {
+            return false;
+        }
+        try {
+            for (var line: Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                var fields = line.split("\t", -1);
+                switch (fields[0]) {
+                case "fingerprint":
+                    _fingerprint = fields[1];
+                    break;
+                case "source":
+                    _sourceHashes.put(fields[1], fields[2]);
+                    break;
+                case "class":
+                    var dependencies = new TreeSet<String>();
+                    if (!fields[3].isEmpty()) {
+                        for (var dependency: fields[3].split(",")) {
+                            dependencies.add(dependency);
+                        }
+                    }
+                    _classes.put(fields[1], new ClassEntry(fields[1], fields[2], dependencies, Boolean.parseBoolean(fields[4])));
+                    break;
+                }
+            }
+            return true;
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Discarding unreadable compile state " + path);
+            _fingerprint = null;
+            _sourceHashes.clear();
+            _classes.clear();
+            return false;
+        }
+    }
+
+    public void save() {
+        var str = new StringBuilder();
+        str.append("fingerprint\t").append(_fingerprint).append("\n");
+        for (var source: _sourceHashes.entrySet()) {
+            str.append("source\t").append(source.getKey()).append("\t").append(source.getValue()).append("\n");
+        }
+        for (var entry: _classes.values()) {
+            str.append("class\t").append(entry.getName()).append("\t").append(entry.getSource()).append("\t");
+            int i = 0;
+            for (var dependency: entry.getDependencies()) {
+                if (!_classes.containsKey(dependency)) {
+                    continue;
+                }
+                if (i++ != 0) {
+                    str.append(",");
+                }
+                str.append(dependency);
+            }
+            str.append("\t").append(entry.hasConstants()).append("\n");
+        }
+        try {
+            var tmp = _statePath.resolveSibling(_statePath.getFileName() + ".tmp");
+            Files.write(tmp, str.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, _statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save compile state " + _statePath + ": " + e);
+        }
+    }
+
+    public void delete() {
+        _statePath.toFile().delete();
+    }
+}
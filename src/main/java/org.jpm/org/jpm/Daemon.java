@@ -0,0 +1,223 @@
+package org.jpm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Daemon {
+    static final int FRAME_EXIT = 0;
+    static final int FRAME_OUT = 1;
+    static final int FRAME_ERR = 2;
+
+    private static volatile Daemon _current;
+    private static final InheritableThreadLocal<DataOutputStream> _client = new InheritableThreadLocal<>();
+
+    private Repository _repo;
+    private ServerSocketChannel _server;
+    private String _token;
+    private long _idleTimeout = TimeUnit.SECONDS.toNanos(Long.getLong("jpm.daemon.idleTimeout", 1800));
+    private volatile long _lastActivity = System.nanoTime();
+    private AtomicInteger _activeRequests = new AtomicInteger();
+    private Map<Path, Object> _projectLocks = new ConcurrentHashMap<>();
+    private ExecutorService _requests = Executors.newCachedThreadPool();
+    private ScheduledExecutorService _idleCheck = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        var thread = new Thread(runnable, "jpm-daemon-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Daemon(Repository repo) {
+        _repo = repo;
+    }
+
+    public static Daemon current() {
+        return _current;
+    }
+
+    static Path getPortPath(Repository repo) {
+        return repo.getDaemonPath().resolve("port");
+    }
+
+    private static class ClientOutputStream extends OutputStream {
+        private OutputStream _fallback;
+        private int _frame;
+
+        ClientOutputStream(OutputStream fallback, int frame) {
+            _fallback = fallback;
+            _frame = frame;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            var client = _client.get();
+            if (client == null) {
+                _fallback.write(b, off, len);
+                return;
+            }
+            try {
+                synchronized (client) {
+                    client.writeByte(_frame);
+                    client.writeInt(len);
+                    client.write(b, off, len);
+                }
+            } catch (IOException e) {
+                // The client went away; keep running the request to completion.
+            }
+        }
+
+        public void flush() throws IOException {
+            var client = _client.get();
+            if (client == null) {
+                _fallback.flush();
+                return;
+            }
+            try {
+                synchronized (client) {
+                    client.flush();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void writePortFile(int port) throws IOException {
+        var random = new byte[24];
+        new SecureRandom().nextBytes(random);
+        var token = new StringBuilder();
+        for (var b: random) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16));
+            token.append(Character.forDigit(b & 0xf, 16));
+        }
+        _token = token.toString();
+        var portPath = getPortPath(_repo);
+        var tmp = portPath.resolveSibling("port.tmp");
+        Files.deleteIfExists(tmp);
+        try {
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(tmp);
+        }
+        Files.write(tmp, (port + " " + _token + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, portPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void serve() {
+        try {
+            _server = ServerSocketChannel.open();
+            _server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            writePortFile(((InetSocketAddress)_server.getLocalAddress()).getPort());
+        } catch (IOException e) {
+            throw new RuntimeException("Could not start jpm daemon", e);
+        }
+        _current = this;
+        JpmDatabase.setPooling(true);
+        System.setOut(new PrintStream(new ClientOutputStream(System.out, FRAME_OUT), true));
+        System.setErr(new PrintStream(new ClientOutputStream(System.err, FRAME_ERR), true));
+        long checkInterval = Math.max(1, Math.min(TimeUnit.NANOSECONDS.toSeconds(_idleTimeout), 10));
+        _idleCheck.scheduleWithFixedDelay(() -> {
+            if (_activeRequests.get() == 0 && System.nanoTime() - _lastActivity > _idleTimeout) {
+                System.out.println("jpm daemon idle, shutting down");
+                shutdown();
+            }
+        }, checkInterval, checkInterval, TimeUnit.SECONDS);
+        System.out.println("jpm daemon listening on " + getPortPath(_repo));
+        try {
+            for (;;) {
+                var channel = _server.accept();
+                _activeRequests.incrementAndGet();
+                _requests.submit(() -> handle(channel));
+            }
+        } catch (ClosedChannelException e) {
+        } catch (IOException e) {
+            System.out.println("jpm daemon failed: " + e);
+        }
+        _requests.shutdown();
+        try {
+            _requests.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+        }
+        _idleCheck.shutdownNow();
+        JpmDatabase.closePooledConnections();
+        _current = null;
+        System.exit(0);
+    }
+
+    public void shutdown() {
+        try {
+            getPortPath(_repo).toFile().delete();
+            _server.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private Object getProjectLock(Path workingDirectory) {
+        var projectPath = Project.calculateProjectPath(workingDirectory);
+        return _projectLocks.computeIfAbsent(projectPath == null ? workingDirectory : projectPath, (k) -> new Object());
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            if (!_token.equals(in.readUTF())) {
+                return;
+            }
+            var workingDirectory = Paths.get(in.readUTF());
+            var args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            int exitCode = 0;
+            _client.set(out);
+            try {
+                synchronized (getProjectLock(workingDirectory)) {
+                    new Jpm(args, workingDirectory).run();
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+                exitCode = 1;
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                _client.remove();
+            }
+            synchronized (out) {
+                out.writeByte(FRAME_EXIT);
+                out.writeInt(exitCode);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("jpm daemon request failed: " + e);
+        } finally {
+            _lastActivity = System.nanoTime();
+            _activeRequests.decrementAndGet();
+        }
+    }
+}
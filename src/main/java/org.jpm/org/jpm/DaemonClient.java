@@ -0,0 +1,155 @@
+package org.jpm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+public class DaemonClient {
+    private static final long SPAWN_TIMEOUT_MILLIS = 10000;
+
+    public static boolean isRequested(String[] args) {
+        if (args.length > 1 && args[1].equals("daemon")) {
+            return args.length > 2 && args[2].equals("stop");
+        }
+        if (args.length > 1 && args[1].equals("serve")) {
+            return false;
+        }
+        var enabled = System.getenv("JPM_DAEMON");
+        return enabled != null && (enabled.equals("1") || enabled.equalsIgnoreCase("true"));
+    }
+
+    public static Integer run(String[] args) {
+        var repo = new Repository();
+        boolean stop = args.length > 1 && args[1].equals("daemon");
+        var connection = connect(repo);
+        if (connection == null) {
+            if (stop) {
+                System.out.println("No jpm daemon is running");
+                return 0;
+            }
+            connection = spawn(repo);
+            if (connection == null) {
+                System.err.println("Could not reach jpm daemon, running in-process");
+                return null;
+            }
+        }
+        try (var channel = connection.getChannel()) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(connection.getToken());
+            out.writeUTF(Paths.get(System.getProperty("user.dir")).toAbsolutePath().toString());
+            out.writeInt(args.length);
+            for (var arg: args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (;;) {
+                int frame = in.readByte();
+                if (frame == Daemon.FRAME_EXIT) {
+                    return in.readInt();
+                }
+                var bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                if (frame == Daemon.FRAME_ERR) {
+                    System.err.write(bytes);
+                    System.err.flush();
+                } else {
+                    System.out.write(bytes);
+                    System.out.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Lost connection to jpm daemon: " + e);
+            return 1;
+        }
+    }
+
+    private static class Connection {
+        private SocketChannel _channel;
+        private String _token;
+
+        Connection(SocketChannel channel, String token) {
+            _channel = channel;
+            _token = token;
+        }
+
+        SocketChannel getChannel() {
+            return _channel;
+        }
+
+        String getToken() {
+            return _token;
+        }
+    }
+
+    private static Connection connect(Repository repo) {
+        var portPath = Daemon.getPortPath(repo);
+        if (!portPath.toFile().exists()) {
+            return null;
+        }
+        try {
+            var fields = new String(Files.readAllBytes(portPath), StandardCharsets.UTF_8).trim().split(" ");
+            var address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(fields[0]));
+            return new Connection(SocketChannel.open(address), fields[1]);
+        } catch (IOException | RuntimeException e) {
+            portPath.toFile().delete();
+            return null;
+        }
+    }
+
+    private static Connection spawn(Repository repo) {
+        var lockPath = repo.getDaemonPath().resolve("spawn.lock");
+        try (var lockFile = new RandomAccessFile(lockPath.toFile(), "rw");
+             var lock = lockFile.getChannel().lock()) {
+            var connection = connect(repo);
+            if (connection != null) {
+                return connection;
+            }
+            var command = new ArrayList<String>();
+            if (Files.isExecutable(Paths.get("/usr/bin/setsid"))) {
+                command.add("/usr/bin/setsid");
+            }
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            var modulePath = System.getProperty("jdk.module.path");
+            if (modulePath != null) {
+                command.add("--module-path");
+                command.add(modulePath);
+                command.add("-m");
+                command.add("org.jpm/org.jpm.Jpm");
+            } else {
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("org.jpm.Jpm");
+            }
+            command.add("jpm");
+            command.add("daemon");
+            var log = repo.getDaemonPath().resolve("daemon.log").toFile();
+            new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                .start();
+            long deadline = System.currentTimeMillis() + SPAWN_TIMEOUT_MILLIS;
+            while (System.currentTimeMillis() < deadline) {
+                connection = connect(repo);
+                if (connection != null) {
+                    return connection;
+                }
+                Thread.sleep(50);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Could not start jpm daemon: " + e);
+        }
+        return null;
+    }
+}
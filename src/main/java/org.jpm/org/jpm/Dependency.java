@@ -6,6 +6,7 @@ public class Dependency {
     private String _name;
     private String _version;
     private Path _binaryPath;
+    private String _binaryVersion;
     private boolean _isSystem;
 
     public Dependency(String name) {
@@ -40,6 +41,14 @@ public class Dependency {
         _binaryPath = path;
     }
 
+    public String getBinaryVersion() {
+        return _binaryVersion;
+    }
+
+    public void setBinaryVersion(String version) {
+        _binaryVersion = version;
+    }
+
     @Override
     public String toString() {
         if (_version == null) {
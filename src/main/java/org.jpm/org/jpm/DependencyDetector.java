@@ -1,7 +1,6 @@
 package org.jpm;
 
 import java.io.IOException;
-import java.lang.module.ModuleFinder;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -11,9 +10,13 @@ import java.util.Map;
 import java.util.regex.Pattern;
 
 public class DependencyDetector implements ModuleInfoParser.ModuleVisitor {
+    private static final Pattern _versionPattern = Pattern.compile(".*-(\\d+\\.\\d+\\.\\d+)\\.jar");
+
     private List<Dependency> _dependencies = new ArrayList<>();
     private Map<String, Dependency> _dependenciesMap = new HashMap<>();
     private Project _project;
+    private ModuleCatalog _catalog;
+    private Map<String, ModuleCatalog.Module> _libraryModules = new HashMap<>();
 
     public void visitModule(int modifiers, String name) {}
     public void visitRequires(int modifiers, String module) {
@@ -28,11 +31,23 @@ public class DependencyDetector implements ModuleInfoParser.ModuleVisitor {
 
     public DependencyDetector(Project project) {
         _project = project;
-        findSourceModules();
-        findBinaryModules(ModuleFinder.of(_project.getLibraryPath().resolve("main")), false);
-        findBinaryModules(ModuleFinder.of(_project.getLibraryPath().resolve("transitive")), false);
-        findBinaryModules(ModuleFinder.ofSystem(), true);
-        findJpmModules();
+        _catalog = ModuleCatalog.of(project);
+        try (var span = Profiler.phase("dependencies")) {
+            findSourceModules();
+            findLibraryModules();
+            for (var module: ModuleCatalog.getSystemModules()) {
+                addBinaryModule(module, true);
+            }
+            findJpmModules();
+        }
+    }
+
+    // Picks up jars added to or removed from lib/ since the last scan
+    public void refresh() {
+        try (var span = Profiler.phase("dependencies.refresh")) {
+            findLibraryModules();
+            findJpmModules();
+        }
     }
 
     private void findSourceModules() {
@@ -55,8 +70,7 @@ public class DependencyDetector implements ModuleInfoParser.ModuleVisitor {
     private void findJpmModules() {
         try {
             var jpmPath = _project.getResourcePath().resolve("main.jpm");
-            String jpmString = new String(Files.readAllBytes(jpmPath));
-            var jpmFile = JpmFile.fromFile(jpmString);
+            var jpmFile = JpmFile.fromPath(jpmPath);
             for (var jpmDep: jpmFile.getMainDependencies()) {
                 var dep = _dependenciesMap.get(jpmDep.getName());
                 if (dep == null) {
@@ -68,33 +82,58 @@ public class DependencyDetector implements ModuleInfoParser.ModuleVisitor {
         } catch (Exception e) {}
     }
 
-    private void findBinaryModules(ModuleFinder finder, boolean system) {
-        for (var module: finder.findAll()) {
-            var descriptor = module.descriptor();
-            var name = descriptor.name();
-            var dep = _dependenciesMap.get(name);
-            if (dep == null) {
-                dep = new Dependency(name);
-                _dependenciesMap.put(name, dep);
-            }
-            var version = descriptor.rawVersion();
-            var path = Paths.get(module.location().get());
-            if (version.isPresent()) {
-                dep.setVersion(version.get());
-            } else {
-                var pattern = Pattern.compile(".*-(\\d+\\.\\d+\\.\\d+)\\.jar");
-                var matcher = pattern.matcher(path.getFileName().toString());
-                if (matcher.matches()) {
-                    dep.setVersion(matcher.group(1));
+    private void findLibraryModules() {
+        var modules = new HashMap<String, ModuleCatalog.Module>();
+        for (var module: _catalog.findJars(_project.getLibraryPath().resolve("main"))) {
+            modules.put(module.getName(), module);
+        }
+        for (var module: _catalog.findJars(_project.getLibraryPath().resolve("transitive"))) {
+            modules.put(module.getName(), module);
+        }
+        _catalog.save();
+        for (var name: _libraryModules.keySet()) {
+            if (!modules.containsKey(name)) {
+                var dep = _dependenciesMap.get(name);
+                if (_dependencies.contains(dep)) {
+                    dep.setVersion(null);
+                    dep.setBinaryPath(null);
+                    dep.setBinaryVersion(null);
                 } else {
-                    throw new RuntimeException("Cant find version for " + name);
+                    _dependenciesMap.remove(name);
                 }
             }
-            dep.setBinaryPath(path);
-            if (system) {
-                dep.setIsSystem(system);
+        }
+        for (var module: modules.values()) {
+            if (module != _libraryModules.get(module.getName())) {
+                addBinaryModule(module, false);
             }
         }
+        _libraryModules = modules;
+    }
+
+    private void addBinaryModule(ModuleCatalog.Module module, boolean system) {
+        var name = module.getName();
+        var dep = _dependenciesMap.get(name);
+        if (dep == null) {
+            dep = new Dependency(name);
+            _dependenciesMap.put(name, dep);
+        }
+        var path = Paths.get(module.getLocation());
+        if (module.getVersion() != null) {
+            dep.setVersion(module.getVersion());
+        } else {
+            var matcher = _versionPattern.matcher(path.getFileName().toString());
+            if (matcher.matches()) {
+                dep.setVersion(matcher.group(1));
+            } else {
+                throw new RuntimeException("Cant find version for " + name);
+            }
+        }
+        dep.setBinaryPath(path);
+        dep.setBinaryVersion(dep.getVersion());
+        if (system) {
+            dep.setIsSystem(system);
+        }
     }
 
     public List<Dependency> getDependencies() {
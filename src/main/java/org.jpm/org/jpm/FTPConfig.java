@@ -1,8 +1,11 @@
 package org.jpm;
 
 public class FTPConfig {
-    public static String _host = "34.66.59.33";
-    public static String _user = "jpm";
-    public static String _password = "jpm";
-    public static int _port = 21;
+    public static String _host = Settings.get("jpm.ftp.host", "34.66.59.33");
+    public static String _user = Settings.get("jpm.ftp.user", "jpm");
+    public static String _password = Settings.get("jpm.ftp.password", "jpm");
+    public static int _port = Settings.getInt("jpm.ftp.port", 21);
+    public static int _sessions = Settings.getInt("jpm.ftp.sessions", 4);
+    public static int _retries = Settings.getInt("jpm.ftp.retries", 3);
+    public static int _timeoutMillis = Settings.getInt("jpm.ftp.timeout", 30000);
 }
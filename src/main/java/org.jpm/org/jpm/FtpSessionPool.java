@@ -0,0 +1,103 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+public class FtpSessionPool implements AutoCloseable {
+    private LinkedBlockingQueue<FTPClient> _idle = new LinkedBlockingQueue<>();
+    private int _maxSessions;
+    private int _sessions;
+    private boolean _closed;
+
+    public FtpSessionPool(int maxSessions) {
+        _maxSessions = Math.max(1, maxSessions);
+    }
+
+    public static FTPClient connect() throws IOException {
+        var ftp = new FTPClient();
+        ftp.setConnectTimeout(FTPConfig._timeoutMillis);
+        ftp.setDefaultTimeout(FTPConfig._timeoutMillis);
+        ftp.setDataTimeout(FTPConfig._timeoutMillis);
+        ftp.connect(FTPConfig._host, FTPConfig._port);
+        if (!FTPReply.isPositiveCompletion(ftp.getReplyCode()) || !ftp.login(FTPConfig._user, FTPConfig._password)) {
+            var reply = ftp.getReplyString();
+            disconnect(ftp);
+            throw new IOException("FTP server refused connection: " + reply);
+        }
+        ftp.enterLocalPassiveMode();
+        ftp.setFileType(FTP.BINARY_FILE_TYPE);
+        return ftp;
+    }
+
+    public static void disconnect(FTPClient ftp) {
+        if (ftp.isConnected()) {
+            try {
+                ftp.logout();
+            } catch (IOException e) {
+            }
+            try {
+                ftp.disconnect();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    public FTPClient acquire() throws IOException, InterruptedException {
+        for (;;) {
+            boolean create = false;
+            synchronized (this) {
+                if (_closed) {
+                    throw new IOException("FTP session pool is closed");
+                }
+                var ftp = _idle.poll();
+                if (ftp != null) {
+                    return ftp;
+                }
+                if (_sessions < _maxSessions) {
+                    _sessions++;
+                    create = true;
+                }
+            }
+            if (create) {
+                try {
+                    return connect();
+                } catch (IOException e) {
+                    synchronized (this) {
+                        _sessions--;
+                    }
+                    throw e;
+                }
+            }
+            var ftp = _idle.poll(100, TimeUnit.MILLISECONDS);
+            if (ftp != null) {
+                return ftp;
+            }
+        }
+    }
+
+    public void release(FTPClient ftp, boolean healthy) {
+        synchronized (this) {
+            if (healthy && !_closed) {
+                _idle.offer(ftp);
+                return;
+            }
+            _sessions--;
+        }
+        disconnect(ftp);
+    }
+
+    public void close() {
+        synchronized (this) {
+            _closed = true;
+        }
+        FTPClient ftp;
+        while ((ftp = _idle.poll()) != null) {
+            disconnect(ftp);
+        }
+    }
+}
@@ -3,108 +3,115 @@ package org.jpm;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
-import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPClient;
-import org.apache.commons.net.ftp.FTPReply;
 
 public class GetCommand {
-    private Project _project = new Project();
+    private Project _project;
+    private Repository _repo = new Repository();
+    private ResolutionSession _session;
     private List<JpmFile> _jpms;
+    private String _module;
+    private String _version;
+    private List<ResolutionCache.Entry> _resolved = new ArrayList<>();
 
-    public GetCommand(List<JpmFile> jpms) {
+    public GetCommand(Project project, ResolutionSession session, List<JpmFile> jpms) {
+        _project = project;
+        _session = session;
         _jpms = jpms;
     }
     
-    public GetCommand(String module, String version) {
-        try (var db = JpmDatabase.remoteDatabase()) {
-            _jpms = new ArrayList<>(1);
-            JpmFile jpm = null;
-            if (version == null) {
-                jpm = db.getJpm(module);
+    public GetCommand(Project project, ResolutionSession session, String module, String version) {
+        _project = project;
+        _session = session;
+        _module = module;
+        _version = version;
+    }
+
+    private JpmFile lookup(ResolutionSession session, String module, String version) {
+        JpmFile jpm;
+        var parts = version == null ? new String[0] : version.split("\\.");
+        try {
+            if (parts.length == 1) {
+                jpm = session.getLatestJpm(module, Integer.parseInt(parts[0]), -1);
+            } else if (parts.length == 2) {
+                jpm = session.getLatestJpm(module, Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
             } else {
-                jpm = db.getJpm(module, version);
+                jpm = session.getJpm(module, version);
             }
-            if (jpm == null) {
-                System.out.println("Unknown jpm: " + module + "-" + version);
-                throw new RuntimeException("Unknown jpm: " + module + "-" + version);
-            }
-            _jpms.add(jpm);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid version " + version);
+        }
+        if (jpm == null) {
+            System.out.println("Unknown jpm: " + module + "-" + version);
+            throw new RuntimeException("Unknown jpm: " + module + "-" + version);
         }
+        return jpm;
     }
 
     public void run() {
+        if (_module == null) {
+            pruneDownloadedJpms();
+            downloadJpms();
+            return;
+        }
+        var cache = ResolutionCache.of(_project);
+        var key = ResolutionCache.getKey("get", List.of(_module, String.valueOf(_version)), _session.getSequence());
+        var cached = cache.get(key);
+        if (cached != null) {
+            System.out.println("Using cached resolution of " + _module);
+            fetch(cache.getMissing(cached));
+            return;
+        }
+        _jpms = new ArrayList<>(List.of(lookup(_session, _module, _version)));
         pruneDownloadedJpms();
         downloadJpms();
+        if (!_resolved.isEmpty()) {
+            cache.put(key, _resolved);
+        }
+    }
+
+    public List<ResolutionCache.Entry> getResolved() {
+        return _resolved;
+    }
+
+    public void fetch(List<ResolutionCache.Entry> entries) {
+        var downloads = new ArrayList<Download>();
+        for (var entry: entries) {
+            downloads.add(new Download(JpmFile.createJpmFile(entry.getName(), entry.getVersion()), entry.getLibType()));
+        }
+        downloadAll(fetchFromCache(downloads));
+        _project.getDependencyDetector().refresh();
     }
     
     private void pruneDownloadedJpms() {
-        var deps = new DependencyDetector(_project);
+        var deps = _project.getDependencyDetector();
         var jpms = new ArrayList<JpmFile>();
         for (var jpm: _jpms) {
             var dep = deps.getDependency(jpm.getMain().getName());
-            if (!dep.isSystem() && dep.getBinaryPath() == null) {
+            if (dep == null || (!dep.isSystem() && dep.getBinaryPath() == null)) {
                 jpms.add(jpm);
             }
         }
         _jpms = jpms;
     }
 
-    private static Pattern _versionPattern = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
-    
-    private static int versionCompareTo(String v1, String v2) {
-        try {
-            int v1_major = 0;
-            int v1_minor = 0;
-            int v1_patch = 0;
-            int v2_major = 0;
-            int v2_minor = 0;
-            int v2_patch = 0;
-            var matcher = _versionPattern.matcher(v1);
-            if (matcher.matches()) {
-                v1_major = Integer.parseInt(matcher.group(1));
-                v1_minor = Integer.parseInt(matcher.group(2));
-                v1_patch = Integer.parseInt(matcher.group(3));
-            } else {
-                throw new RuntimeException("Cant find version");
-            }
-            matcher = _versionPattern.matcher(v2);
-            if (matcher.matches()) {
-                v2_major = Integer.parseInt(matcher.group(1));
-                v2_minor = Integer.parseInt(matcher.group(2));
-                v2_patch = Integer.parseInt(matcher.group(3));
-            } else {
-                throw new RuntimeException("Cant find version");
-            }
-            
-            if (v1_major < v2_major) {
-                return -2;
-            }
-            if (v1_major > v2_major) {
-                return 2;
-            }
-            if (v1_minor < v2_minor) {
-                return -1;
-            }
-            if (v1_minor > v2_minor) {
-                return 1;
-            }
-            if (v1_patch < v2_patch) {
-                return -1;
-            }
-            if (v1_patch > v2_patch) {
-                return 1;
-            }
-            return 0;
-        } catch (Exception e) {
-            throw new RuntimeException("Cant find version");
+    public static int versionCompareTo(String v1, String v2) {
+        long packed1 = Version.pack(v1);
+        long packed2 = Version.pack(v2);
+        if (Version.getMajor(packed1) != Version.getMajor(packed2)) {
+            return packed1 < packed2 ? -2 : 2;
         }
+        return Long.signum(packed1 - packed2);
     }
     
     private void downloadJpms() {
@@ -112,107 +119,204 @@ public class GetCommand {
             return;
         }
         
-        // Traverse dependencies
+        // Prefetch the transitive closure in one query, then resolve against the session
+        var roots = new ArrayList<JpmFile.JpmReference>();
+        var direct = new HashSet<String>();
+        for (var jpmFile: _jpms) {
+            roots.add(jpmFile.getMain());
+            direct.add(jpmFile.getMain().getName());
+        }
+        var resolver = new Resolver(_session);
         var deps = new HashSet<JpmFile>();
         var tdeps = new HashSet<JpmFile>();
-        var stack = new LinkedList<JpmFile>();
-        try (var db = JpmDatabase.remoteDatabase()) {
-            for (var jpmFile: _jpms) {
-                deps.add(jpmFile);
-                for (var jpmRef: jpmFile.getMainDependencies()) {
-                    var jpmDep = db.getJpm(jpmRef.getName(), jpmRef.getVersion());
-                    stack.add(jpmDep);
-                }
-            }
-            while (!stack.isEmpty()) {
-                var jpmFile = stack.pop();
-                if (deps.contains(jpmFile) || tdeps.contains(jpmFile)) {
-                    continue;
-                }
-                tdeps.add(jpmFile);
-                for (var jpmRef: jpmFile.getMainDependencies()) {
-                    var jpmDep = db.getJpm(jpmRef.getName(), jpmRef.getVersion());
-                    stack.add(jpmDep);
+        try (var span = Profiler.phase("resolve.remote")) {
+            _session.getClosure(roots);
+            for (var jpm: resolver.resolve(_project.getProjectName(), roots).values()) {
+                if (direct.contains(jpm.getMain().getName())) {
+                    deps.add(jpm);
+                } else {
+                    tdeps.add(jpm);
                 }
             }
         }
+        if (resolver.getUpgradeCount() > 0) {
+            System.out.println("Upgraded " + resolver.getUpgradeCount() + " dependencies to resolve version conflicts");
+        }
         
-        // Figure out version collisions
-        var jpmMap = new HashMap<String, JpmFile>();
-        var jpmDeletes = new ArrayList<JpmFile>();
+        // Download selected dependencies
+        var downloads = new ArrayList<Download>();
         for (var jpm: deps) {
-            jpmMap.put(jpm.getMain().getName(), jpm);
+            downloads.add(new Download(jpm, "main"));
         }
         for (var jpm: tdeps) {
-            var otherJpm = jpmMap.get(jpm.getMain().getName());
-            if (otherJpm == null) {
-                jpmMap.put(jpm.getMain().getName(), jpm);
-            } else {
-                int comparison = versionCompareTo(jpm.getMain().getVersion(), otherJpm.getMain().getVersion());
-                if (comparison == 2 || comparison == -2) {
-                    throw new RuntimeException("Incompatible JPM versions in transitive dependencies");
-                }
-                if (comparison == 1) {
-                    jpmMap.put(jpm.getMain().getName(), jpm);
-                    jpmDeletes.add(otherJpm);
-                }
-            }
+            downloads.add(new Download(jpm, "transitive"));
         }
-        for (var delJpm: jpmDeletes) {
-            var otherJpm = jpmMap.get(delJpm.getMain().getName());
-            if (deps.contains(delJpm)) {
-                deps.remove(delJpm);
-                tdeps.remove(delJpm);
-                deps.add(otherJpm);
-            } else {
-                tdeps.remove(delJpm);
-            }
+        for (var download: downloads) {
+            var main = download._jpm.getMain();
+            _resolved.add(new ResolutionCache.Entry(download._libType, main.getName(), main.getVersion()));
         }
-        
-        // Download selected dependencies
-        for (var jpm: deps) {
-            downloadJpm(jpm, "main");
+        downloadAll(fetchFromCache(downloads));
+        _project.getDependencyDetector().refresh();
+    }
+
+    private static class Download {
+        private JpmFile _jpm;
+        private String _libType;
+        private long _bytes;
+        private long _nanos;
+        private int _attempts;
+        private Exception _failure;
+
+        Download(JpmFile jpm, String libType) {
+            _jpm = jpm;
+            _libType = libType;
         }
-        for (var jpm: tdeps) {
-            downloadJpm(jpm, "transitive");
+
+        String getJarName() {
+            return _jpm.getMain().getName() + "-" + _jpm.getMain().getVersion() + ".jar";
         }
     }
-    
-    private void downloadJpm(JpmFile jpm, String libType) {
-        var ftp = new FTPClient();
-        String jpmName = jpm.getMain().getName();
-        String jpmVersion = jpm.getMain().getVersion();
-        try {
-            ftp.connect(FTPConfig._host, FTPConfig._port);
-            ftp.login(FTPConfig._user, FTPConfig._password);
-            ftp.enterLocalPassiveMode();
-            ftp.setFileType(FTP.BINARY_FILE_TYPE);
-            int reply = ftp.getReplyCode();
-            if (!FTPReply.isPositiveCompletion(reply)) {
-                ftp.disconnect();
-                System.err.println("FTP server refused connection.");
-                return;
-            }
 
-            var jarName = jpmName + "-" + jpmVersion + ".jar";
-            var remoteFileName = "jpm/" + jarName;
-            var localFile = _project.getLibraryPath().resolve(libType).resolve(jarName).toFile();
-            System.out.println("Downloading " + remoteFileName + " as " + localFile);
-            try (var os = new BufferedOutputStream(new FileOutputStream(localFile))) {
-                ftp.retrieveFile(remoteFileName, os);
+    private static String formatRate(long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        return String.format("%.1f KB/s", bytes / 1024.0 / seconds);
+    }
+
+    private List<Download> fetchFromCache(List<Download> downloads) {
+        try (var span = Profiler.phase("cache")) {
+            return linkFromCache(downloads);
+        }
+    }
+
+    private List<Download> linkFromCache(List<Download> downloads) {
+        var missing = new ArrayList<Download>();
+        int linked = 0;
+        int copied = 0;
+        for (var download: downloads) {
+            var main = download._jpm.getMain();
+            var cachedJar = _repo.findCachedJar(main.getName(), main.getVersion());
+            if (cachedJar == null) {
+                missing.add(download);
+                continue;
+            }
+            var localFile = _project.getLibraryPath().resolve(download._libType).resolve(download.getJarName());
+            if (_repo.materialize(cachedJar, localFile)) {
+                linked++;
+            } else {
+                copied++;
             }
+        }
+        if (linked + copied > 0) {
+            System.out.println("Resolved " + (linked + copied) + " artifacts from " + _repo.getCachePath() +
+                               " (" + linked + " linked, " + copied + " copied)");
+        }
+        return missing;
+    }
 
-            ftp.logout();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (ftp.isConnected()) {
+    private void downloadAll(List<Download> downloads) {
+        if (downloads.isEmpty()) {
+            return;
+        }
+        if (_session.isOffline()) {
+            var names = new ArrayList<String>();
+            for (var download: downloads) {
+                names.add(download.getJarName());
+            }
+            throw new RuntimeException("Offline, cannot download " + names);
+        }
+        long start = System.nanoTime();
+        int sessions = Math.min(FTPConfig._sessions, downloads.size());
+        var pool = Executors.newFixedThreadPool(sessions);
+        try (var span = Profiler.phase("download"); var ftpSessions = new FtpSessionPool(sessions)) {
+            var pending = new ArrayList<Future<?>>();
+            for (var download: downloads) {
+                pending.add(pool.submit(() -> downloadJpm(ftpSessions, download)));
+            }
+            for (var future: pending) {
                 try {
-                    ftp.disconnect();
-                } catch (IOException ioe) {
-                    // do nothing
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Download failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while downloading", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = 0;
+        var failed = new ArrayList<String>();
+        for (var download: downloads) {
+            bytes += download._bytes;
+            if (download._failure != null) {
+                failed.add(download.getJarName());
+            }
+        }
+        System.out.println("Downloaded " + (downloads.size() - failed.size()) + " of " + downloads.size() + " artifacts, " +
+                           bytes / 1024 + " KB in " + nanos / 1000000 + " ms (" + formatRate(bytes, nanos) + ", " +
+                           sessions + " sessions)");
+        if (!failed.isEmpty()) {
+            throw new RuntimeException("Could not download " + failed);
+        }
+    }
+
+    private void downloadJpm(FtpSessionPool sessions, Download download) {
+        var jarName = download.getJarName();
+        var remoteFileName = "jpm/" + jarName;
+        var localFile = _project.getLibraryPath().resolve(download._libType).resolve(jarName);
+        var partFile = localFile.resolveSibling(jarName + ".part");
+        for (;;) {
+            download._attempts++;
+            long start = System.nanoTime();
+            FTPClient ftp = null;
+            boolean healthy = false;
+            var span = Profiler.download(jarName);
+            try {
+                ftp = sessions.acquire();
+                boolean retrieved;
+                try (var os = new BufferedOutputStream(new FileOutputStream(partFile.toFile()))) {
+                    retrieved = ftp.retrieveFile(remoteFileName, os);
+                }
+                healthy = true;
+                if (!retrieved) {
+                    throw new IOException("FTP server refused " + remoteFileName + ": " + ftp.getReplyString().trim());
+                }
+                Files.move(partFile, localFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                _repo.addToCache(download._jpm.getMain().getName(), download._jpm.getMain().getVersion(), localFile);
+                download._nanos = System.nanoTime() - start;
+                download._bytes = Files.size(localFile);
+                span.add(download._bytes);
+                System.out.println("Downloaded " + remoteFileName + " as " + localFile + " (" + download._bytes / 1024 + " KB in " +
+                                   download._nanos / 1000000 + " ms, " + formatRate(download._bytes, download._nanos) +
+                                   (download._attempts > 1 ? ", attempt " + download._attempts : "") + ")");
+                return;
+            } catch (IOException e) {
+                span.fail();
+                partFile.toFile().delete();
+                if (download._attempts >= FTPConfig._retries) {
+                    System.err.println("Failed to download " + remoteFileName + " after " + download._attempts + " attempts: " + e.getMessage());
+                    download._failure = e;
+                    return;
+                }
+                System.out.println("Retrying " + remoteFileName + " after: " + e.getMessage());
+            } catch (InterruptedException e) {
+                span.fail();
+                download._failure = e;
+                return;
+            } finally {
+                span.close();
+                if (ftp != null) {
+                    sessions.release(ftp, healthy);
                 }
             }
+            try {
+                long backoff = 250L << (download._attempts - 1);
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+            } catch (InterruptedException e) {
+                download._failure = e;
+                return;
+            }
         }
     }
 }
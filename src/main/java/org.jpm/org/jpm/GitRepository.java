@@ -0,0 +1,577 @@
+package org.jpm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Reads refs and commits straight from .git, which is enough to find the
+// nearest version tag without starting a git process. Loose objects and
+// version 2 pack indexes with offset and ref deltas are supported. Anything
+// else, like alternates or SHA-256 repositories, ends in an IOException and
+// callers fall back to the git command.
+public class GitRepository implements AutoCloseable {
+    private static final int OBJ_COMMIT = 1;
+    private static final int OBJ_TREE = 2;
+    private static final int OBJ_BLOB = 3;
+    private static final int OBJ_TAG = 4;
+    private static final int OBJ_OFS_DELTA = 6;
+    private static final int OBJ_REF_DELTA = 7;
+
+    static class GitObject {
+        int _type;
+        byte[] _data;
+
+        GitObject(int type, byte[] data) {
+            _type = type;
+            _data = data;
+        }
+    }
+
+    static class Commit {
+        String _id;
+        long _time;
+        List<String> _parents = new ArrayList<>();
+    }
+
+    static class Pack {
+        FileChannel _index;
+        FileChannel _pack;
+        int[] _fanout = new int[256];
+    }
+
+    private Path _gitDir;
+    private Path _commonDir;
+    private Map<String, String> _packedRefs;
+    private Map<String, String> _packedPeeled = new HashMap<>();
+    private List<Pack> _packs;
+    private Set<String> _shallow = new HashSet<>();
+
+    private GitRepository(Path gitDir, Path commonDir) {
+        _gitDir = gitDir;
+        _commonDir = commonDir;
+    }
+
+    // Returns the .git directory or gitdir file of the repository containing
+    // path, looking in parent directories like git does, or null if there is none
+    public static Path find(Path path) {
+        for (var dir = path.toAbsolutePath().normalize(); dir != null; dir = dir.getParent()) {
+            var dotGit = dir.resolve(".git");
+            if (Files.exists(dotGit)) {
+                return dotGit;
+            }
+        }
+        return null;
+    }
+
+    public static GitRepository open(Path dotGit) throws IOException {
+        var gitDir = dotGit;
+        if (Files.isRegularFile(gitDir)) {
+            var content = Files.readString(gitDir).trim();
+            if (!content.startsWith("gitdir: ")) {
+                throw new IOException("Unsupported .git file " + gitDir);
+            }
+            gitDir = dotGit.getParent().resolve(content.substring(8)).normalize();
+        }
+        if (!Files.isDirectory(gitDir)) {
+            throw new IOException("No git directory at " + gitDir);
+        }
+        var commonDir = gitDir;
+        var commonDirFile = gitDir.resolve("commondir");
+        if (Files.isRegularFile(commonDirFile)) {
+            commonDir = gitDir.resolve(Files.readString(commonDirFile).trim()).normalize();
+        }
+        if (Files.exists(commonDir.resolve("objects/info/alternates"))) {
+            throw new IOException("Object alternates are not supported");
+        }
+        var repo = new GitRepository(gitDir, commonDir);
+        var shallow = commonDir.resolve("shallow");
+        if (Files.isRegularFile(shallow)) {
+            for (var line: Files.readAllLines(shallow)) {
+                repo._shallow.add(line.trim());
+            }
+        }
+        return repo;
+    }
+
+    private Map<String, String> getPackedRefs() throws IOException {
+        if (_packedRefs != null) {
+            return _packedRefs;
+        }
+        _packedRefs = new TreeMap<>();
+        var packedRefs = _commonDir.resolve("packed-refs");
+        if (!Files.isRegularFile(packedRefs)) {
+            return _packedRefs;
+        }
+        String last = null;
+        for (var line: Files.readAllLines(packedRefs, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("^")) {
+                if (last != null) {
+                    _packedPeeled.put(last, line.substring(1).trim());
+                }
+                continue;
+            }
+            int space = line.indexOf(' ');
+            last = line.substring(space + 1).trim();
+            _packedRefs.put(last, line.substring(0, space));
+        }
+        return _packedRefs;
+    }
+
+    private String resolveRef(String name) throws IOException {
+        for (int depth = 0; depth < 8; depth++) {
+            String value = null;
+            for (var dir: List.of(_gitDir, _commonDir)) {
+                var file = dir.resolve(name);
+                if (Files.isRegularFile(file)) {
+                    value = Files.readString(file).trim();
+                    break;
+                }
+            }
+            if (value == null) {
+                return getPackedRefs().get(name);
+            }
+            if (!value.startsWith("ref: ")) {
+                return checkId(value);
+            }
+            name = value.substring(5).trim();
+        }
+        throw new IOException("Symbolic ref loop at " + name);
+    }
+
+    private static String checkId(String id) throws IOException {
+        if (id.length() != 40) {
+            throw new IOException("Unsupported object id " + id);
+        }
+        return id;
+    }
+
+    // Returns the commit id of HEAD, or null if the current branch has no commits
+    public String getHead() throws IOException {
+        return resolveRef("HEAD");
+    }
+
+    // Returns tag names mapped to the object ids they point to, before peeling
+    public Map<String, String> getTags() throws IOException {
+        var tags = new TreeMap<String, String>();
+        for (var packed: getPackedRefs().entrySet()) {
+            if (packed.getKey().startsWith("refs/tags/")) {
+                tags.put(packed.getKey().substring(10), packed.getValue());
+            }
+        }
+        var tagsDir = _commonDir.resolve("refs/tags");
+        if (Files.isDirectory(tagsDir)) {
+            try (var files = Files.walk(tagsDir)) {
+                for (var file: (Iterable<Path>)files.filter(Files::isRegularFile)::iterator) {
+                    var name = tagsDir.relativize(file).toString().replace(File.separatorChar, '/');
+                    tags.put(name, checkId(Files.readString(file).trim()));
+                }
+            }
+        }
+        return tags;
+    }
+
+    private String peel(String tag, String id) throws IOException {
+        var peeled = _packedPeeled.get("refs/tags/" + tag);
+        if (peeled != null && id.equals(getPackedRefs().get("refs/tags/" + tag))) {
+            return peeled;
+        }
+        for (int depth = 0; depth < 8; depth++) {
+            var object = readObject(id);
+            if (object._type != OBJ_TAG) {
+                return id;
+            }
+            var data = new String(object._data, StandardCharsets.UTF_8);
+            if (!data.startsWith("object ")) {
+                throw new IOException("Malformed tag " + id);
+            }
+            id = checkId(data.substring(7, data.indexOf('\n')));
+        }
+        throw new IOException("Tag chain too long at " + tag);
+    }
+
+    // Walks the history from HEAD newest commit first, like git log does, and
+    // returns the first group of pattern in a tag on the way. When a commit
+    // has several matching tags the highest version wins.
+    public String findNearestTag(Pattern pattern) throws IOException {
+        var head = getHead();
+        if (head == null) {
+            return null;
+        }
+        var tagged = new HashMap<String, List<String>>();
+        for (var tag: getTags().entrySet()) {
+            var matcher = pattern.matcher(tag.getKey());
+            if (matcher.matches()) {
+                tagged.computeIfAbsent(peel(tag.getKey(), tag.getValue()), (id) -> new ArrayList<>()).add(matcher.group(1));
+            }
+        }
+        if (tagged.isEmpty()) {
+            return null;
+        }
+        var queue = new PriorityQueue<Commit>((a, b) -> Long.compare(b._time, a._time));
+        var seen = new HashSet<String>();
+        seen.add(head);
+        queue.add(readCommit(head));
+        Commit commit;
+        while ((commit = queue.poll()) != null) {
+            var versions = tagged.get(commit._id);
+            if (versions != null) {
+                var best = versions.get(0);
+                for (var version: versions) {
+                    if (Version.pack(version) > Version.pack(best)) {
+                        best = version;
+                    }
+                }
+                return best;
+            }
+            if (_shallow.contains(commit._id)) {
+                continue;
+            }
+            for (var parent: commit._parents) {
+                if (seen.add(parent)) {
+                    queue.add(readCommit(parent));
+                }
+            }
+        }
+        return null;
+    }
+
+    private Commit readCommit(String id) throws IOException {
+        var object = readObject(id);
+        if (object._type != OBJ_COMMIT) {
+            throw new IOException("Not a commit " + id);
+        }
+        var commit = new Commit();
+        commit._id = id;
+        var data = object._data;
+        int pos = 0;
+        while (pos < data.length && data[pos] != '\n') {
+            int end = pos;
+            while (end < data.length && data[end] != '\n') {
+                end++;
+            }
+            var line = new String(data, pos, end - pos, StandardCharsets.UTF_8);
+            if (line.startsWith("parent ")) {
+                commit._parents.add(checkId(line.substring(7)));
+            } else if (line.startsWith("committer ")) {
+                var fields = line.substring(line.lastIndexOf('>') + 1).trim().split(" ");
+                commit._time = Long.parseLong(fields[0]);
+            }
+            pos = end + 1;
+        }
+        return commit;
+    }
+
+    GitObject readObject(String id) throws IOException {
+        var loose = _commonDir.resolve("objects").resolve(id.substring(0, 2)).resolve(id.substring(2));
+        if (Files.isRegularFile(loose)) {
+            return readLooseObject(loose);
+        }
+        var key = parseId(id);
+        for (var pack: getPacks()) {
+            long offset = findOffset(pack, key);
+            if (offset >= 0) {
+                return readPackObject(pack, offset);
+            }
+        }
+        throw new IOException("Object " + id + " not found");
+    }
+
+    private static GitObject readLooseObject(Path path) throws IOException {
+        var raw = inflate(Files.readAllBytes(path), -1);
+        int space = 0;
+        while (space < raw.length && raw[space] != ' ') {
+            space++;
+        }
+        int nul = space;
+        while (nul < raw.length && raw[nul] != 0) {
+            nul++;
+        }
+        if (nul >= raw.length) {
+            throw new IOException("Malformed object " + path);
+        }
+        var type = new String(raw, 0, space, StandardCharsets.US_ASCII);
+        var data = new byte[raw.length - nul - 1];
+        System.arraycopy(raw, nul + 1, data, 0, data.length);
+        switch (type) {
+        case "commit":
+            return new GitObject(OBJ_COMMIT, data);
+        case "tree":
+            return new GitObject(OBJ_TREE, data);
+        case "blob":
+            return new GitObject(OBJ_BLOB, data);
+        case "tag":
+            return new GitObject(OBJ_TAG, data);
+        default:
+            throw new IOException("Unknown object type " + type);
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int size) throws IOException {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            var out = new byte[size >= 0 ? size : Math.max(64, compressed.length * 4)];
+            int count = 0;
+            while (!inflater.finished()) {
+                if (count == out.length) {
+                    if (size >= 0) {
+                        break;
+                    }
+                    var grown = new byte[out.length * 2];
+                    System.arraycopy(out, 0, grown, 0, count);
+                    out = grown;
+                }
+                int read = inflater.inflate(out, count, out.length - count);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated object");
+                }
+                count += read;
+            }
+            if (count == out.length) {
+                return out;
+            }
+            var result = new byte[count];
+            System.arraycopy(out, 0, result, 0, count);
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] parseId(String id) {
+        var key = new byte[20];
+        for (int i = 0; i < 20; i++) {
+            key[i] = (byte)Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return key;
+    }
+
+    private List<Pack> getPacks() throws IOException {
+        if (_packs != null) {
+            return _packs;
+        }
+        _packs = new ArrayList<>();
+        var names = _commonDir.resolve("objects/pack").toFile().list();
+        if (names == null) {
+            return _packs;
+        }
+        for (var name: names) {
+            if (!name.endsWith(".idx")) {
+                continue;
+            }
+            var pack = new Pack();
+            var packDir = _commonDir.resolve("objects/pack");
+            pack._index = FileChannel.open(packDir.resolve(name), StandardOpenOption.READ);
+            _packs.add(pack);
+            pack._pack = FileChannel.open(packDir.resolve(name.substring(0, name.length() - 4) + ".pack"), StandardOpenOption.READ);
+            var header = read(pack._index, 0, 8 + 256 * 4);
+            if (header.getInt(0) != 0xff744f63 || header.getInt(4) != 2) {
+                throw new IOException("Unsupported pack index " + name);
+            }
+            for (int i = 0; i < 256; i++) {
+                pack._fanout[i] = header.getInt(8 + 4 * i);
+            }
+        }
+        return _packs;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long findOffset(Pack pack, byte[] key) throws IOException {
+        int first = key[0] & 0xff;
+        int low = first == 0 ? 0 : pack._fanout[first - 1];
+        int high = pack._fanout[first] - 1;
+        int count = pack._fanout[255];
+        long names = 8 + 256 * 4;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            var name = read(pack._index, names + 20L * mid, 20);
+            int cmp = 0;
+            for (int i = 0; i < 20 && cmp == 0; i++) {
+                cmp = Integer.compare(name.get(i) & 0xff, key[i] & 0xff);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                long offsets = names + 20L * count + 4L * count;
+                long offset = read(pack._index, offsets + 4L * mid, 4).getInt(0) & 0xffffffffL;
+                if ((offset & 0x80000000L) != 0) {
+                    long large = offsets + 4L * count + 8L * (offset & 0x7fffffffL);
+                    offset = read(pack._index, large, 8).getLong(0);
+                }
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private GitObject readPackObject(Pack pack, long offset) throws IOException {
+        var header = read(pack._pack, offset, 32);
+        int b = header.get() & 0xff;
+        int type = (b >> 4) & 7;
+        long size = b & 0xf;
+        for (int shift = 4; (b & 0x80) != 0; shift += 7) {
+            b = header.get() & 0xff;
+            size |= (long)(b & 0x7f) << shift;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Object too large at " + offset);
+        }
+        GitObject base = null;
+        if (type == OBJ_OFS_DELTA) {
+            b = header.get() & 0xff;
+            long distance = b & 0x7f;
+            while ((b & 0x80) != 0) {
+                b = header.get() & 0xff;
+                distance = ((distance + 1) << 7) | (b & 0x7f);
+            }
+            base = readPackObject(pack, offset - distance);
+        } else if (type == OBJ_REF_DELTA) {
+            var id = new byte[20];
+            header.get(id);
+            base = readObject(Hash.toHex(id));
+        }
+        var data = inflatePacked(pack, offset + header.position(), (int)size);
+        if (base == null) {
+            return new GitObject(type, data);
+        }
+        return new GitObject(base._type, applyDelta(base._data, data));
+    }
+
+    private static byte[] inflatePacked(Pack pack, long position, int size) throws IOException {
+        var inflater = new Inflater();
+        try {
+            var out = new byte[size];
+            int count = 0;
+            var chunk = ByteBuffer.allocate(8192);
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    chunk.clear();
+                    if (pack._pack.read(chunk, position) <= 0) {
+                        throw new IOException("Truncated pack");
+                    }
+                    position += chunk.position();
+                    chunk.flip();
+                    inflater.setInput(chunk.array(), 0, chunk.limit());
+                }
+                int read = inflater.inflate(out, count, size - count);
+                count += read;
+                if (read == 0 && count == size) {
+                    break;
+                }
+                if (read == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Unexpected dictionary in pack");
+                }
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+        int pos = 0;
+        long sourceSize = 0;
+        int b;
+        int shift = 0;
+        do {
+            b = delta[pos++] & 0xff;
+            sourceSize |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        long targetSize = 0;
+        shift = 0;
+        do {
+            b = delta[pos++] & 0xff;
+            targetSize |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (sourceSize != base.length || targetSize > Integer.MAX_VALUE) {
+            throw new IOException("Delta does not match its base");
+        }
+        var out = new byte[(int)targetSize];
+        int count = 0;
+        while (pos < delta.length) {
+            int op = delta[pos++] & 0xff;
+            if ((op & 0x80) != 0) {
+                int copyOffset = 0;
+                int copySize = 0;
+                for (int i = 0; i < 4; i++) {
+                    if ((op & (1 << i)) != 0) {
+                        copyOffset |= (delta[pos++] & 0xff) << (8 * i);
+                    }
+                }
+                for (int i = 0; i < 3; i++) {
+                    if ((op & (0x10 << i)) != 0) {
+                        copySize |= (delta[pos++] & 0xff) << (8 * i);
+                    }
+                }
+                if (copySize == 0) {
+                    copySize = 0x10000;
+                }
+                System.arraycopy(base, copyOffset, out, count, copySize);
+                count += copySize;
+            } else if (op != 0) {
+                System.arraycopy(delta, pos, out, count, op);
+                pos += op;
+                count += op;
+            } else {
+                throw new IOException("Invalid delta opcode");
+            }
+        }
+        if (count != out.length) {
+            throw new IOException("Delta produced " + count + " of " + out.length + " bytes");
+        }
+        return out;
+    }
+
+    @Override
+    public void close() {
+        if (_packs == null) {
+            return;
+        }
+        for (var pack: _packs) {
+            try {
+                pack._index.close();
+                if (pack._pack != null) {
+                    pack._pack.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+}
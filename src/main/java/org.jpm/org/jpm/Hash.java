@@ -0,0 +1,43 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class Hash {
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        var str = new StringBuilder(digest.length * 2);
+        for (var b: digest) {
+            str.append(Character.forDigit((b >> 4) & 0xf, 16));
+            str.append(Character.forDigit(b & 0xf, 16));
+        }
+        return str.toString();
+    }
+
+    public static String sha256(byte[] bytes) {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    public static String sha256(Path file) throws IOException {
+        var digest = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            var buffer = new byte[1 << 16];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return toHex(digest.digest());
+    }
+}
@@ -10,21 +10,33 @@ import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.jar.JarFile;
 
 public class InstallCommand {
-    private Project _project = new Project();
+    private Project _project;
+    private ResolutionSession _session;
     private Repository _repo = new Repository();
     private File _mainJar;
     private DependencyDetector _deps;
 
+    public InstallCommand(Project project, ResolutionSession session) {
+        _project = project;
+        _session = session;
+    }
+
     public void run() {
         if (!_project.getBuildPath().resolve(_project.getProjectJarName()).toFile().exists()) {
-            new BuildCommand().run();
+            new BuildCommand(_project, _session).run();
+        }
+        _deps = _project.getDependencyDetector();
+        try (var span = Profiler.phase("install.libs")) {
+            installLibs();
+        }
+        try (var span = Profiler.phase("install.launcher")) {
+            installLauncher();
         }
-        _deps = new DependencyDetector(_project);
-        installLibs();
-        installLauncher();
     }
 
     private void installJar(Path src, Path dst, String fileName) {
@@ -46,7 +58,8 @@ public class InstallCommand {
 
     private void installLibs(String libPath) {
         var finder = ModuleFinder.of(_project.getLibraryPath().resolve(libPath));
-        var jpms = new ArrayList<JpmFile>();
+        var jars = new ArrayList<Path>();
+        var fileNames = new ArrayList<String>();
         for (var module: finder.findAll()) {
             var descriptor = module.descriptor();
             var name = descriptor.name();
@@ -58,10 +71,13 @@ public class InstallCommand {
                 throw new RuntimeException("Can't install " + name + " without version");
             }
             fileName += ".jar";
-            var src = Paths.get(module.location().get());
-            var dst = _repo.getLibraryPath().resolve(fileName);
-            installJar(src, dst, fileName);
-            jpms.add(JpmFile.fromJar(src));
+            jars.add(Paths.get(module.location().get()));
+            fileNames.add(fileName);
+        }
+        // Embed missing jpm files first so that the installed copies carry them
+        var jpms = JpmFile.fromJars(jars);
+        for (int i = 0; i < jars.size(); i++) {
+            installJar(jars.get(i), _repo.getLibraryPath().resolve(fileNames.get(i)), fileNames.get(i));
         }
         try (JpmDatabase db = JpmDatabase.localDatabase()) {
             db.addJpms(jpms);
@@ -81,30 +97,47 @@ public class InstallCommand {
         }
     }
 
-    private void installLauncher() {
+    private List<String> getMainClasses() {
+        var index = ClassIndex.of(_project);
+        if (index.load()) {
+            return index.getMainClasses();
+        }
         try (JarFile j = new JarFile(_mainJar)) {
             String mainClass = j.getManifest().getMainAttributes().getValue("Main-Class");
+            return mainClass == null ? List.of() : List.of(mainClass);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read " + _mainJar, e);
+        }
+    }
 
-            if (mainClass == null) {
-                return;
-            }
-
-            String mainModule = _project.getProjectName();
+    private void installLauncher() {
+        String mainModule = _project.getProjectName();
+        var sharePath = _repo.getSharePath(_project);
+        var executables = new HashSet<String>();
+        for (var mainClass: getMainClasses()) {
             String[] mainClassComponents = mainClass.toLowerCase().split("\\.");
             String executable = mainClassComponents[mainClassComponents.length - 1];
+            if (!executables.add(executable)) {
+                System.out.println("Skipping launcher for " + mainClass + ", " + executable + " is already taken");
+                continue;
+            }
 
-            var sharePath = _repo.getSharePath(_project);
-            Path launcherArgsPath = sharePath.resolve("args");
+            Path launcherArgsPath = sharePath.resolve(executable + ".args");
             Path launcherSourcePath = _repo.getBinaryPath().resolve(executable);
 
-            String launcherArgs = "--module-path=" + _repo.getLibraryPath() + " -m " + mainModule;
+            String launcherArgs = "--module-path=" + _repo.getLibraryPath() + " -m " + mainModule + "/" + mainClass;
             String launcherSource = "#!/usr/bin/java @" + launcherArgsPath;
 
-            Files.write(launcherArgsPath, launcherArgs.getBytes(Charset.defaultCharset()));
-            Files.write(launcherSourcePath, launcherSource.getBytes(Charset.defaultCharset()));
-            Cmd.run("chmod +x " + launcherSourcePath.toString());
-        } catch (IOException e) {
-            throw new RuntimeException("Could not install launcher: ", e);
+            try {
+                Files.write(launcherArgsPath, launcherArgs.getBytes(Charset.defaultCharset()));
+                Files.write(launcherSourcePath, launcherSource.getBytes(Charset.defaultCharset()));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not install launcher: ", e);
+            }
+            if (!new Cmd("chmod", "+x", launcherSourcePath.toString()).execute().isSuccess()) {
+                throw new RuntimeException("Could not make " + launcherSourcePath + " executable");
+            }
+            System.out.println("Installed launcher " + launcherSourcePath + " for " + mainClass);
         }
     }
 }
@@ -0,0 +1,527 @@
+package org.jpm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ModuleVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class JarWriter {
+    // Every entry gets the same DOS timestamp (1980-02-01 00:00) so that
+    // identical inputs produce byte-identical jars.
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (2 << 5) | 1;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    static class Entry {
+        String _name;
+        int _method;
+        long _crc;
+        long _size;
+        long _compressedSize;
+        byte[] _data;
+        long _offset;
+    }
+
+    private Path _jarPath;
+    private String _moduleVersion;
+    private String _mainClass;
+    private Map<String, byte[]> _extraEntries = new TreeMap<>();
+    private int _level = Deflater.DEFAULT_COMPRESSION;
+
+    public JarWriter(Path jarPath) {
+        _jarPath = jarPath;
+    }
+
+    public void setModuleVersion(String moduleVersion) {
+        _moduleVersion = moduleVersion;
+    }
+
+    public void setMainClass(String mainClass) {
+        _mainClass = mainClass;
+    }
+
+    public void setLevel(int level) {
+        _level = level;
+    }
+
+    public void addEntry(String name, byte[] content) {
+        _extraEntries.put(name, content);
+    }
+
+    public static byte[] rewriteModuleInfo(byte[] moduleInfo, String version, String mainClass) {
+        var reader = new ClassReader(moduleInfo);
+        var writer = new ClassWriter(reader, 0);
+        reader.accept(new ClassVisitor(Opcodes.ASM7, writer) {
+            @Override
+            public ModuleVisitor visitModule(String name, int access, String moduleVersion) {
+                var visitor = super.visitModule(name, access, version == null ? moduleVersion : version);
+                if (mainClass == null) {
+                    return visitor;
+                }
+                visitor.visitMainClass(mainClass.replace('.', '/'));
+                return new ModuleVisitor(Opcodes.ASM7, visitor) {
+                    @Override
+                    public void visitMainClass(String existingMainClass) {
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private byte[] getManifest() throws IOException {
+        var manifest = new Manifest();
+        var attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(new Attributes.Name("Created-By"), "jpm");
+        if (_mainClass != null) {
+            attributes.put(Attributes.Name.MAIN_CLASS, _mainClass);
+        }
+        var out = new ByteArrayOutputStream();
+        manifest.write(out);
+        return out.toByteArray();
+    }
+
+    private Entry compress(String name, byte[] content) {
+        return compress(name, content, _level);
+    }
+
+    private static Entry compress(String name, byte[] content, int level) {
+        var entry = new Entry();
+        entry._name = name;
+        entry._size = content.length;
+        var crc = new CRC32();
+        crc.update(content);
+        entry._crc = crc.getValue();
+        entry._method = METHOD_STORED;
+        entry._data = content;
+        if (content.length == 0) {
+            return entry;
+        }
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            var out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            var buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            if (out.size() < content.length) {
+                entry._method = METHOD_DEFLATED;
+                entry._data = out.toByteArray();
+            }
+        } finally {
+            deflater.end();
+        }
+        return entry;
+    }
+
+    private Callable<Entry> readAndCompress(String name, Path file) {
+        return () -> {
+            var content = Files.readAllBytes(file);
+            if (name.equals("module-info.class")) {
+                content = rewriteModuleInfo(content, _moduleVersion, _mainClass);
+            }
+            return compress(name, content);
+        };
+    }
+
+    public void write(Path classesPath) {
+        var sources = new TreeMap<String, Path>();
+        try (var files = Files.walk(classesPath)) {
+            files.filter((file) -> !file.equals(classesPath)).forEach((file) -> {
+                var name = classesPath.relativize(file).toString().replace(File.separatorChar, '/');
+                sources.put(Files.isDirectory(file) ? name + "/" : name, file);
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list " + classesPath, e);
+        }
+        sources.remove("META-INF/MANIFEST.MF");
+        for (var name: _extraEntries.keySet()) {
+            sources.remove(name);
+            for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+                sources.putIfAbsent(name.substring(0, slash + 1), null);
+            }
+        }
+        sources.remove("META-INF/");
+
+        var tasks = new ArrayList<Callable<Entry>>();
+        byte[] manifest;
+        try {
+            manifest = getManifest();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create manifest", e);
+        }
+        tasks.add(() -> compress("META-INF/", new byte[0]));
+        tasks.add(() -> compress("META-INF/MANIFEST.MF", manifest));
+        var names = new TreeMap<String, Callable<Entry>>();
+        for (var source: sources.entrySet()) {
+            var name = source.getKey();
+            if (name.endsWith("/")) {
+                names.put(name, () -> compress(name, new byte[0]));
+            } else {
+                names.put(name, readAndCompress(name, source.getValue()));
+            }
+        }
+        for (var extra: _extraEntries.entrySet()) {
+            var content = extra.getValue();
+            names.put(extra.getKey(), () -> compress(extra.getKey(), content));
+        }
+        tasks.addAll(names.values());
+        if (tasks.size() >= 0xffff) {
+            throw new RuntimeException("Too many entries for " + _jarPath + ", zip64 is not supported");
+        }
+
+        var tmp = _jarPath.resolveSibling(_jarPath.getFileName() + ".tmp");
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        var pool = Executors.newFixedThreadPool(threads);
+        try (var out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+            writeEntries(out, tasks, pool, threads * 4);
+        } catch (IOException e) {
+            tmp.toFile().delete();
+            throw new RuntimeException("Could not write " + _jarPath, e);
+        } finally {
+            pool.shutdownNow();
+        }
+        try {
+            Files.move(tmp, _jarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not write " + _jarPath, e);
+        }
+    }
+
+    private void writeEntries(OutputStream out, List<Callable<Entry>> tasks, ExecutorService pool, int window) throws IOException {
+        var written = new ArrayList<Entry>(tasks.size());
+        var inFlight = new ArrayDeque<Future<Entry>>();
+        long offset = 0;
+        int next = 0;
+        while (next < tasks.size() || !inFlight.isEmpty()) {
+            while (next < tasks.size() && inFlight.size() < window) {
+                inFlight.add(pool.submit(tasks.get(next++)));
+            }
+            Entry entry;
+            try {
+                entry = inFlight.poll().get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            entry._offset = offset;
+            offset += writeLocalHeader(out, entry);
+            out.write(entry._data);
+            offset += entry._data.length;
+            entry._compressedSize = entry._data.length;
+            entry._data = null;
+            written.add(entry);
+            if (offset > 0xffffffffL) {
+                throw new IOException("Jar exceeds 4GB, zip64 is not supported");
+            }
+        }
+        long centralOffset = offset;
+        for (var entry: written) {
+            offset += writeCentralHeader(out, entry);
+        }
+        writeInt(out, 0x06054b50);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, written.size());
+        writeShort(out, written.size());
+        writeInt(out, offset - centralOffset);
+        writeInt(out, centralOffset);
+        writeShort(out, 0);
+    }
+
+    private static boolean isModuleInfo(String name) {
+        return name.equals("module-info.class") || (name.startsWith("META-INF/versions/") && name.endsWith("/module-info.class"));
+    }
+
+    private static byte[] inflate(ByteBuffer data, int method, int size) throws IOException {
+        var compressed = new byte[data.remaining()];
+        data.get(compressed);
+        if (method == METHOD_STORED) {
+            return compressed;
+        }
+        if (method != METHOD_DEFLATED) {
+            throw new IOException("Unsupported compression method " + method);
+        }
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            var content = new byte[size];
+            int count = 0;
+            while (count < size && !inflater.finished()) {
+                int read = inflater.inflate(content, count, size - count);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated entry");
+                }
+                count += read;
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer) throws IOException {
+        for (int pos = buffer.limit() - 22; pos >= Math.max(0, buffer.limit() - 22 - 0xffff); pos--) {
+            if (buffer.getInt(pos) == 0x06054b50) {
+                return pos;
+            }
+        }
+        throw new IOException("Not a zip file");
+    }
+
+    // Rewrites an existing jar without unpacking it. Entries that are not
+    // touched are copied as raw compressed bytes, module-info.class is
+    // rewritten when a version or main class is set, and the added entries
+    // replace existing ones in place or are appended. The result is written
+    // to a temporary file and renamed over the jar, so a jar that is a hard
+    // link into the cache is replaced instead of modified.
+    public void update() {
+        var tmp = _jarPath.resolveSibling(_jarPath.getFileName() + ".tmp");
+        try (var in = FileChannel.open(_jarPath, StandardOpenOption.READ);
+             var out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (in.size() > Integer.MAX_VALUE) {
+                throw new IOException("Jar exceeds 2GB");
+            }
+            var buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()).order(ByteOrder.LITTLE_ENDIAN);
+            int end = findEndOfCentralDirectory(buffer);
+            int count = buffer.getShort(end + 10) & 0xffff;
+            long centralStart = buffer.getInt(end + 16) & 0xffffffffL;
+            if (count == 0xffff || centralStart == 0xffffffffL) {
+                throw new IOException("zip64 is not supported");
+            }
+            var stream = new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16);
+            var central = new ByteArrayOutputStream();
+            var names = new HashSet<String>();
+            var pending = new TreeMap<>(_extraEntries);
+            boolean rewriteModule = _moduleVersion != null || _mainClass != null;
+            long offset = 0;
+            int written = 0;
+            int pos = (int)centralStart;
+            for (int i = 0; i < count; i++) {
+                if (buffer.getInt(pos) != 0x02014b50) {
+                    throw new IOException("Corrupt central directory");
+                }
+                int flags = buffer.getShort(pos + 8) & 0xffff;
+                int method = buffer.getShort(pos + 10) & 0xffff;
+                long compressedSize = buffer.getInt(pos + 20) & 0xffffffffL;
+                long size = buffer.getInt(pos + 24) & 0xffffffffL;
+                int nameLength = buffer.getShort(pos + 28) & 0xffff;
+                int headerLength = 46 + nameLength + (buffer.getShort(pos + 30) & 0xffff) + (buffer.getShort(pos + 32) & 0xffff);
+                long local = buffer.getInt(pos + 42) & 0xffffffffL;
+                if (compressedSize == 0xffffffffL || size == 0xffffffffL || local == 0xffffffffL) {
+                    throw new IOException("zip64 is not supported");
+                }
+                var nameBytes = new byte[nameLength];
+                buffer.position(pos + 46);
+                buffer.get(nameBytes);
+                var name = new String(nameBytes, (flags & FLAG_UTF8) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+                names.add(name);
+                if (buffer.getInt((int)local) != 0x04034b50) {
+                    throw new IOException("Corrupt local header for " + name);
+                }
+                int dataStart = (int)local + 30 + (buffer.getShort((int)local + 26) & 0xffff) + (buffer.getShort((int)local + 28) & 0xffff);
+                byte[] replacement = pending.remove(name);
+                if (replacement == null && rewriteModule && isModuleInfo(name)) {
+                    var data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                    data.position(dataStart).limit(dataStart + (int)compressedSize);
+                    replacement = rewriteModuleInfo(inflate(data, method, (int)size), _moduleVersion, _mainClass);
+                }
+                if (replacement != null) {
+                    var entry = compress(name, replacement, _level);
+                    entry._offset = offset;
+                    entry._compressedSize = entry._data.length;
+                    offset += writeLocalHeader(stream, entry);
+                    stream.write(entry._data);
+                    offset += entry._data.length;
+                    writeCentralHeader(central, entry);
+                } else {
+                    long length = dataStart - local + compressedSize;
+                    if ((flags & 8) != 0) {
+                        int descriptor = (int)(local + length);
+                        length += buffer.getInt(descriptor) == 0x08074b50 ? 16 : 12;
+                    }
+                    stream.flush();
+                    for (long copied = 0; copied < length; ) {
+                        copied += in.transferTo(local + copied, length - copied, out);
+                    }
+                    var header = new byte[headerLength];
+                    buffer.position(pos);
+                    buffer.get(header);
+                    ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int)offset);
+                    central.write(header);
+                    offset += length;
+                }
+                written++;
+                pos += headerLength;
+            }
+            for (var extra: pending.entrySet()) {
+                var name = extra.getKey();
+                var entries = new ArrayList<String>();
+                for (int slash = name.indexOf('/'); slash >= 0; slash = name.indexOf('/', slash + 1)) {
+                    if (names.add(name.substring(0, slash + 1))) {
+                        entries.add(name.substring(0, slash + 1));
+                    }
+                }
+                entries.add(name);
+                for (var entryName: entries) {
+                    var entry = compress(entryName, entryName.equals(name) ? extra.getValue() : new byte[0], _level);
+                    entry._offset = offset;
+                    entry._compressedSize = entry._data.length;
+                    offset += writeLocalHeader(stream, entry);
+                    stream.write(entry._data);
+                    offset += entry._data.length;
+                    writeCentralHeader(central, entry);
+                    written++;
+                }
+            }
+            if (written >= 0xffff || offset + central.size() > 0xffffffffL) {
+                throw new IOException("zip64 is not supported");
+            }
+            central.writeTo(stream);
+            writeInt(stream, 0x06054b50);
+            writeShort(stream, 0);
+            writeShort(stream, 0);
+            writeShort(stream, written);
+            writeShort(stream, written);
+            writeInt(stream, central.size());
+            writeInt(stream, offset);
+            writeShort(stream, 0);
+            stream.flush();
+        } catch (IOException | RuntimeException e) {
+            tmp.toFile().delete();
+            throw new RuntimeException("Could not update " + _jarPath + ": " + e.getMessage(), e);
+        }
+        try {
+            Files.move(tmp, _jarPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not update " + _jarPath, e);
+        }
+    }
+
+    public static void updateAll(List<JarWriter> jars) {
+        if (jars.isEmpty()) {
+            return;
+        }
+        if (jars.size() == 1) {
+            jars.get(0).update();
+            return;
+        }
+        var pool = Executors.newFixedThreadPool(Math.min(jars.size(), Math.max(1, Runtime.getRuntime().availableProcessors())));
+        try {
+            var pending = new ArrayList<Future<?>>();
+            for (var jar: jars) {
+                pending.add(pool.submit(jar::update));
+            }
+            var failed = new ArrayList<String>();
+            for (int i = 0; i < jars.size(); i++) {
+                try {
+                    pending.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println(e.getCause().getMessage());
+                    failed.add(jars.get(i)._jarPath.getFileName().toString());
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new RuntimeException("Could not update " + failed);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while updating jars", e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static int writeLocalHeader(OutputStream out, Entry entry) throws IOException {
+        var name = entry._name.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, 0x04034b50);
+        writeShort(out, entry._method == METHOD_DEFLATED ? 20 : 10);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, entry._method);
+        writeShort(out, DOS_TIME);
+        writeShort(out, DOS_DATE);
+        writeInt(out, entry._crc);
+        writeInt(out, entry._data.length);
+        writeInt(out, entry._size);
+        writeShort(out, name.length);
+        writeShort(out, 0);
+        out.write(name);
+        return 30 + name.length;
+    }
+
+    private static int writeCentralHeader(OutputStream out, Entry entry) throws IOException {
+        var name = entry._name.getBytes(StandardCharsets.UTF_8);
+        writeInt(out, 0x02014b50);
+        writeShort(out, 20);
+        writeShort(out, entry._method == METHOD_DEFLATED ? 20 : 10);
+        writeShort(out, FLAG_UTF8);
+        writeShort(out, entry._method);
+        writeShort(out, DOS_TIME);
+        writeShort(out, DOS_DATE);
+        writeInt(out, entry._crc);
+        writeInt(out, entry._compressedSize);
+        writeInt(out, entry._size);
+        writeShort(out, name.length);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeInt(out, 0);
+        writeInt(out, entry._offset);
+        out.write(name);
+        return 46 + name.length;
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, long value) throws IOException {
+        out.write((int)(value & 0xff));
+        out.write((int)((value >>> 8) & 0xff));
+        out.write((int)((value >>> 16) & 0xff));
+        out.write((int)((value >>> 24) & 0xff));
+    }
+}
@@ -7,20 +7,62 @@ import java.util.ArrayList;
 public class Jpm {
     private String[] _args;
     private int _index = 1;
+    private Path _workingDirectory;
+    private Project _project;
+
     public static void main(String[] args) throws Exception {
-        var main = new Jpm(args);
+        if (DaemonClient.isRequested(args)) {
+            var exitCode = DaemonClient.run(args);
+            if (exitCode != null) {
+                System.exit(exitCode);
+            }
+        }
+        var main = new Jpm(args, Paths.get(System.getProperty("user.dir")));
         main.run();
     }
 
-    public Jpm(String[] args) {
+    public Jpm(String[] args, Path workingDirectory) {
         _args = args;
+        _workingDirectory = workingDirectory.toAbsolutePath();
+    }
+
+    private Project getProject() {
+        if (_project == null) {
+            _project = new Project(_workingDirectory);
+        }
+        return _project;
     }
 
-    private void run() {
+    public void run() {
+        var args = new ArrayList<String>();
+        boolean profile = false;
+        for (var arg: _args) {
+            if (arg.equals("--profile")) {
+                profile = true;
+            } else {
+                args.add(arg);
+            }
+        }
+        _args = args.toArray(new String[0]);
         if (_index >= _args.length) {
             help();
             return;
         }
+        if (!profile) {
+            runCommand();
+            return;
+        }
+        Profiler.start();
+        try (var span = Profiler.phase(_args[_index])) {
+            runCommand();
+        } finally {
+            var projectPath = Project.calculateProjectPath(_workingDirectory);
+            var buildPath = (projectPath == null ? _workingDirectory : projectPath).resolve("build");
+            Profiler.finish(buildPath.resolve("jpm-profile.json"));
+        }
+    }
+
+    private void runCommand() {
         switch (_args[_index++]) {
         case "--help":
             help();
@@ -43,6 +85,15 @@ public class Jpm {
         case "publish":
             publish();
             break;
+        case "daemon":
+            daemon();
+            break;
+        case "sync":
+            sync();
+            break;
+        case "serve":
+            serve();
+            break;
         default:
             help();
             break;
@@ -52,47 +103,106 @@ public class Jpm {
     private void help() {
         System.out.println("Usage: jpm <command> <command-args>");
         System.out.println("Commands:");
-        System.out.println("\tbuild - This command builds your project");
+        System.out.println("\tbuild [--offline] - This command builds your project");
+        System.out.println("\tsync [--full] - Update the local metadata snapshot in ~/.jpm");
+        System.out.println("\tdaemon [stop] - Run or stop the build daemon used when JPM_DAEMON=1");
+        System.out.println("\tserve [directory] [--port <port>] - Serve a local stand-in for the central repository");
+        System.out.println("Options:");
+        System.out.println("\t--profile - Write a trace of the command's phases to build/jpm-profile.json");
+    }
+
+    private ResolutionSession newSession() {
+        boolean offline = _index < _args.length && _args[_index].equals("--offline");
+        if (offline) {
+            _index++;
+        }
+        return new ResolutionSession(offline);
     }
 
     private void build() {
-        new BuildCommand().run();
+        try (var session = newSession()) {
+            new BuildCommand(getProject(), session).run();
+        }
     }
 
     private void get() {
         String version = null;
-        for (;;) {
-          String module = _args[_index++];
-          if (_index < _args.length) {
-            switch (_args[_index++]) {
-              case "--version":
-                version = _args[_index++];
+        try (var session = newSession()) {
+          for (;;) {
+            String module = _args[_index++];
+            if (_index < _args.length) {
+              switch (_args[_index++]) {
+                case "--version":
+                  version = _args[_index++];
+                  break;
+              }
+            }
+            new GetCommand(getProject(), session, module, version).run();
+            if (_index == _args.length) {
                 break;
             }
           }
-          new GetCommand(module, version).run();
-          if (_index == _args.length) {
-              break;
-          }
         }
     }
-    
+
     private void clean() {
-        new CleanCommand().run();
+        new CleanCommand(getProject()).run();
     }
 
     private void publish() {
         var jars = new ArrayList<Path>();
         while (_index < _args.length) {
-            jars.add(Paths.get(_args[_index++]).toAbsolutePath());
+            jars.add(_workingDirectory.resolve(_args[_index++]).toAbsolutePath());
+        }
+        if (jars.isEmpty()) {
+            var project = getProject();
+            jars.add(project.getBuildPath().resolve(project.getProjectJarName()));
         }
         new PublishCommand(jars).run();
     }
 
     private void install() {
-        new InstallCommand().run();
+        try (var session = newSession()) {
+            new InstallCommand(getProject(), session).run();
+        }
     }
 
     private void uninstall() {
     }
+
+    private void sync() {
+        boolean full = _index < _args.length && _args[_index].equals("--full");
+        if (full) {
+            _index++;
+        }
+        new SyncCommand(full).run();
+    }
+
+    private void serve() {
+        var directory = new Repository().getRepositoryPath().resolve("local");
+        int port = 2121;
+        while (_index < _args.length) {
+            var arg = _args[_index++];
+            if (arg.equals("--port") && _index < _args.length) {
+                port = Integer.parseInt(_args[_index++]);
+            } else {
+                directory = _workingDirectory.resolve(arg);
+            }
+        }
+        new ServeCommand(directory, port).run();
+    }
+
+    private void daemon() {
+        if (_index < _args.length && _args[_index].equals("stop")) {
+            _index++;
+            var daemon = Daemon.current();
+            if (daemon == null) {
+                System.out.println("No jpm daemon is running");
+            } else {
+                daemon.shutdown();
+            }
+            return;
+        }
+        new Daemon(new Repository()).serve();
+    }
 }
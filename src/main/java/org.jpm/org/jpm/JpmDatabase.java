@@ -1,24 +1,112 @@
 package org.jpm;
 
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 public class JpmDatabase implements AutoCloseable {
+    private static volatile boolean _pooling;
+    private static Map<String, Deque<Connection>> _pooledConnections = new ConcurrentHashMap<>();
+
+    private static final long SYNC_OVERLAP = 256;
+
     private Connection _connection;
+    private String _url;
+    private Properties _info;
+    private Path _snapshotPath;
+    private boolean _snapshotChecked;
+    private boolean _offline;
 
     public JpmDatabase(String url, Properties info) {
-        connect(url, info);
+        _url = url;
+        _info = info;
+    }
+
+    public void setSnapshotPath(Path snapshotPath) {
+        _snapshotPath = snapshotPath;
+    }
+
+    public void setOffline(boolean offline) {
+        _offline = offline;
+    }
+
+    // Connects right away, creating the tables if the database is new
+    public void open() {
+        getConnection();
+    }
+
+    private Connection getConnection() {
+        if (_connection == null) {
+            if (_offline) {
+                throw new RuntimeException("Offline, cannot query metadata database");
+            }
+            connect(_url, _info);
+            if (_connection == null) {
+                throw new RuntimeException("Could not connect to metadata database " + _url.replaceAll("\\?.*", ""));
+            }
+        }
+        return _connection;
+    }
+
+    private boolean isSQLite() {
+        return _url.startsWith("jdbc:sqlite:");
+    }
+
+    public static void setPooling(boolean pooling) {
+        _pooling = pooling;
+    }
+
+    public static void closePooledConnections() {
+        for (var connections: _pooledConnections.values()) {
+            Connection connection;
+            while ((connection = connections.poll()) != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    private static Connection takePooledConnection(String url) {
+        var connections = _pooledConnections.get(url);
+        if (connections == null) {
+            return null;
+        }
+        Connection connection;
+        while ((connection = connections.poll()) != null) {
+            try {
+                if (connection.isValid(2)) {
+                    return connection;
+                }
+                connection.close();
+            } catch (SQLException e) {
+            }
+        }
+        return null;
     }
 
     private void connect(String url, Properties info) {
+        if (_pooling) {
+            _connection = takePooledConnection(url);
+            if (_connection != null) {
+                return;
+            }
+        }
         try {
             if (info == null) {
                 _connection = DriverManager.getConnection(url);
@@ -57,6 +145,14 @@ public class JpmDatabase implements AutoCloseable {
                              "        JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH\n" + 
                              "    )\n" + 
                              ");");
+                stmt.execute("CREATE TABLE IF NOT EXISTS ARTIFACT_LOG (\n" +
+                             (isSQLite() ? "    SEQ integer PRIMARY KEY AUTOINCREMENT,\n"
+                                         : "    SEQ bigint NOT NULL AUTO_INCREMENT PRIMARY KEY,\n") +
+                             "    JPM_NAME varchar(127) NOT NULL,\n" +
+                             "    VERSION_MAJOR integer,\n" +
+                             "    VERSION_MINOR integer,\n" +
+                             "    VERSION_PATCH integer\n" +
+                             ");");
             }
             _connection.setAutoCommit(false);
         } catch (SQLException e) {
@@ -64,98 +160,102 @@ public class JpmDatabase implements AutoCloseable {
         }
     }
 
-    public void addJpms(List<JpmFile> jpms) {
-        var pattern = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
+    public List<JpmFile> addJpms(List<JpmFile> jpms) {
+        var versions = new LinkedHashMap<String, Version>();
+        var unique = new ArrayList<JpmFile>();
         for (var jpm: jpms) {
             var main = jpm.getMain();
-            int major = 0;
-            int minor = 0;
-            int patch = 0;
-            var matcher = pattern.matcher(main.getVersion());
-            if (!matcher.matches()) {
-                throw new RuntimeException("Invalid version");
-            }
-            try {
-                major = Integer.parseInt(matcher.group(1));
-            } catch (Exception e) {
-            }
-            try {
-                minor = Integer.parseInt(matcher.group(2));
-            } catch (Exception e) {
-            }
-            try {
-                patch = Integer.parseInt(matcher.group(3));
-            } catch (Exception e) {
-            }
-            String sql = "INSERT INTO ARTIFACTS(JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH) VALUES(?, ?, ?, ?);";
-            try (PreparedStatement pstmt = _connection.prepareStatement(sql)) {
-                pstmt.setString(1, main.getName());
-                pstmt.setInt(2, major);
-                pstmt.setInt(3, minor);
-                pstmt.setInt(4, patch);
-                pstmt.executeUpdate();
-            } catch (SQLException e) {
+            var version = Version.parse(main.getVersion());
+            if (versions.putIfAbsent(getArtifactKey(main.getName(), version), version) == null) {
+                unique.add(jpm);
             }
         }
-        for (var jpm: jpms) {
-            var main = jpm.getMain();
-            int major = 0;
-            int minor = 0;
-            int patch = 0;
-            var matcher = pattern.matcher(main.getVersion());
-            if (!matcher.matches()) {
-                throw new RuntimeException("Invalid version");
-            }
-            try {
-                major = Integer.parseInt(matcher.group(1));
-            } catch (Exception e) {
-            }
-            try {
-                minor = Integer.parseInt(matcher.group(2));
-            } catch (Exception e) {
-            }
-            try {
-                patch = Integer.parseInt(matcher.group(3));
-            } catch (Exception e) {
-            }
-            for (var dep: jpm.getMainDependencies()) {
-                String dependencyName = dep.getName();
-                int dependencyMajor = 0;
-                int dependencyMinor = 0;
-                int dependencyPatch = 0;
-                var dependencyMatcher = pattern.matcher(dep.getVersion());
-                if (!dependencyMatcher.matches()) {
-                    throw new RuntimeException("Invalid version");
-                }
-                try {
-                    dependencyMajor = Integer.parseInt(dependencyMatcher.group(1));
-                } catch (Exception e) {
-                }
-                try {
-                    dependencyMinor = Integer.parseInt(dependencyMatcher.group(2));
-                } catch (Exception e) {
+        var conflicts = new ArrayList<JpmFile>();
+        var added = new ArrayList<JpmFile>();
+        var connection = getConnection();
+        try {
+            // Only duplicate keys are skipped, with an update count of 0; a row skipped
+            // that way was published by someone else first. Any other error fails the
+            // transaction. On MySQL the insert selects its values rather than using
+            // VALUES, so that the driver does not rewrite the batch into one multi-row
+            // insert without per-row counts.
+            String sql = isSQLite()
+                ? "INSERT INTO ARTIFACTS(JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH) VALUES(?, ?, ?, ?)\n" +
+                  "ON CONFLICT DO NOTHING;"
+                : "INSERT INTO ARTIFACTS(JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH) SELECT ?, ?, ?, ? FROM DUAL\n" +
+                  "ON DUPLICATE KEY UPDATE JPM_NAME = JPM_NAME;";
+            try (var query = Profiler.query(sql); PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                for (var jpm: unique) {
+                    var main = jpm.getMain();
+                    var version = versions.get(getArtifactKey(main.getName(), Version.parse(main.getVersion())));
+                    pstmt.setString(1, main.getName());
+                    pstmt.setInt(2, version.getMajor());
+                    pstmt.setInt(3, version.getMinor());
+                    pstmt.setInt(4, version.getPatch());
+                    pstmt.addBatch();
                 }
-                try {
-                    dependencyPatch = Integer.parseInt(dependencyMatcher.group(3));
-                } catch (Exception e) {
+                var counts = pstmt.executeBatch();
+                for (int i = 0; i < unique.size(); i++) {
+                    if (counts[i] == 0) {
+                        conflicts.add(unique.get(i));
+                    } else {
+                        added.add(unique.get(i));
+                    }
                 }
-                String sql = "INSERT INTO DEPENDENCIES(FROM_JPM_NAME, FROM_VERSION_MAJOR, FROM_VERSION_MINOR, FROM_VERSION_PATCH,\n" +
-                             "TO_JPM_NAME, TO_VERSION_MAJOR, TO_VERSION_MINOR, TO_VERSION_PATCH)\n" +
-                             "VALUES(?, ?, ?, ?, ?, ?, ?, ?);";
-                try (PreparedStatement pstmt = _connection.prepareStatement(sql)) {
+                query.add(unique.size());
+            }
+            sql = "INSERT INTO ARTIFACT_LOG(JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH) VALUES(?, ?, ?, ?);";
+            try (var query = Profiler.query(sql); PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                for (var jpm: added) {
+                    var main = jpm.getMain();
+                    var version = versions.get(getArtifactKey(main.getName(), Version.parse(main.getVersion())));
                     pstmt.setString(1, main.getName());
-                    pstmt.setInt(2, major);
-                    pstmt.setInt(3, minor);
-                    pstmt.setInt(4, patch);
-                    pstmt.setString(5, dependencyName);
-                    pstmt.setInt(6, dependencyMajor);
-                    pstmt.setInt(7, dependencyMinor);
-                    pstmt.setInt(8, dependencyPatch);
-                    pstmt.executeUpdate();
-                } catch (SQLException e) {
+                    pstmt.setInt(2, version.getMajor());
+                    pstmt.setInt(3, version.getMinor());
+                    pstmt.setInt(4, version.getPatch());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                query.add(added.size());
+            }
+            sql = "INSERT INTO DEPENDENCIES(FROM_JPM_NAME, FROM_VERSION_MAJOR, FROM_VERSION_MINOR, FROM_VERSION_PATCH,\n" +
+                  "TO_JPM_NAME, TO_VERSION_MAJOR, TO_VERSION_MINOR, TO_VERSION_PATCH)\n" +
+                  "VALUES(?, ?, ?, ?, ?, ?, ?, ?)\n" +
+                  (isSQLite() ? "ON CONFLICT DO NOTHING;" : "ON DUPLICATE KEY UPDATE FROM_JPM_NAME = FROM_JPM_NAME;");
+            try (var query = Profiler.query(sql); PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                for (var jpm: added) {
+                    var main = jpm.getMain();
+                    var version = versions.get(getArtifactKey(main.getName(), Version.parse(main.getVersion())));
+                    for (var dep: jpm.getMainDependencies()) {
+                        var dependencyVersion = Version.parse(dep.getVersion());
+                        pstmt.setString(1, main.getName());
+                        pstmt.setInt(2, version.getMajor());
+                        pstmt.setInt(3, version.getMinor());
+                        pstmt.setInt(4, version.getPatch());
+                        pstmt.setString(5, dep.getName());
+                        pstmt.setInt(6, dependencyVersion.getMajor());
+                        pstmt.setInt(7, dependencyVersion.getMinor());
+                        pstmt.setInt(8, dependencyVersion.getPatch());
+                        pstmt.addBatch();
+                        query.add(1);
+                    }
                 }
+                pstmt.executeBatch();
             }
+            connection.commit();
+            System.out.println("Registered " + added.size() + " artifacts (" + conflicts.size() + " already present)");
+        } catch (SQLException | RuntimeException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+            }
+            throw new RuntimeException("Could not register artifacts: " + e.getMessage(), e);
         }
+        return conflicts;
+    }
+
+    private static String getArtifactKey(String name, Version version) {
+        return name + "-" + version;
     }
 
     public static JpmDatabase localDatabase() {
@@ -165,61 +265,175 @@ public class JpmDatabase implements AutoCloseable {
     }
 
     public static JpmDatabase remoteDatabase() {
-        var path = "jdbc:mysql://" + MySQLConfig._host + "/" + MySQLConfig._database + "?user=" + MySQLConfig._user + "&password=" + MySQLConfig._password;
+        JpmDatabase db;
+        if (MySQLConfig._url != null) {
+            db = new JpmDatabase(MySQLConfig._url, MySQLConfig._url.startsWith("jdbc:mysql:") ? getMySQLInfo() : null);
+        } else {
+            var path = "jdbc:mysql://" + MySQLConfig._host + "/" + MySQLConfig._database + "?user=" + MySQLConfig._user + "&password=" + MySQLConfig._password;
+            db = new JpmDatabase(path, getMySQLInfo());
+        }
+        db.setSnapshotPath(new Repository().getSnapshotPath());
+        return db;
+    }
+
+    private static Properties getMySQLInfo() {
         var info = new Properties();
         info.put("serverTimezone", TimeZone.getDefault().getDisplayName(false, TimeZone.SHORT));
-        return new JpmDatabase(path, info);
+        info.put("rewriteBatchedStatements", "true");
+        // Report a duplicate left alone by ON DUPLICATE KEY UPDATE as 0 rows, not 1
+        info.put("useAffectedRows", "true");
+        info.put("connectTimeout", Integer.getInteger("jpm.db.connectTimeout", 5000).toString());
+        return info;
     }
 
-    public JpmFile getJpm(String name, String version) {
-        var pattern = Pattern.compile("(\\d+)\\.(\\d+)\\.(\\d+)");
-        int major = 0;
-        int minor = 0;
-        int patch = 0;
-        JpmFile jpmFile = null;
-        var matcher = pattern.matcher(version);
-        if (!matcher.matches()) {
-            throw new RuntimeException("Invalid version");
+    private MetadataSnapshot getSnapshot() {
+        if (_snapshotPath == null) {
+            return null;
         }
-        try {
-            major = Integer.parseInt(matcher.group(1));
-        } catch (Exception e) {
+        if (!_snapshotChecked && !_offline) {
+            _snapshotChecked = true;
+            var file = _snapshotPath.toFile();
+            long maxAge = Long.getLong("jpm.metadata.maxAge", 3600) * 1000;
+            if (!file.exists() || (maxAge >= 0 && System.currentTimeMillis() - file.lastModified() > maxAge)) {
+                try {
+                    syncSnapshot(false);
+                } catch (RuntimeException e) {
+                    System.out.println("Could not refresh metadata snapshot: " + e.getMessage());
+                }
+            }
         }
-        try {
-            minor = Integer.parseInt(matcher.group(2));
-        } catch (Exception e) {
+        return MetadataSnapshot.open(_snapshotPath);
+    }
+
+    // Returns the sequence of the metadata lookups are answered from. The
+    // snapshot is refreshed first when it is older than jpm.metadata.maxAge,
+    // and databases without one report their latest ARTIFACT_LOG entry.
+    public long getSequence() {
+        if (_snapshotPath != null) {
+            var snapshot = getSnapshot();
+            return snapshot == null ? -1 : snapshot.getSequence();
+        }
+        String sql = "SELECT MAX(SEQ) FROM ARTIFACT_LOG;";
+        try (var query = Profiler.query(sql); Statement stmt = getConnection().createStatement()) {
+            ResultSet rs = stmt.executeQuery(sql);
+            query.add(1);
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not read metadata sequence: " + e.getMessage(), e);
         }
+    }
+
+    public int syncSnapshot(boolean full) {
+        var snapshot = full ? null : MetadataSnapshot.open(_snapshotPath);
+        var builder = new MetadataSnapshot.Builder(snapshot);
+        int added = 0;
+        long sequence = 0;
         try {
-            patch = Integer.parseInt(matcher.group(3));
-        } catch (Exception e) {
+            try (var query = Profiler.query("SELECT MAX(SEQ) FROM ARTIFACT_LOG;"); Statement stmt = getConnection().createStatement()) {
+                ResultSet rs = stmt.executeQuery("SELECT MAX(SEQ) FROM ARTIFACT_LOG;");
+                if (rs.next()) {
+                    sequence = rs.getLong(1);
+                }
+            }
+            String sql;
+            if (snapshot == null) {
+                sql = "SELECT A.JPM_NAME, A.VERSION_MAJOR, A.VERSION_MINOR, A.VERSION_PATCH,\n" +
+                      "       D.TO_JPM_NAME, D.TO_VERSION_MAJOR, D.TO_VERSION_MINOR, D.TO_VERSION_PATCH\n" +
+                      "FROM ARTIFACTS A LEFT JOIN DEPENDENCIES D ON\n" +
+                      "    D.FROM_JPM_NAME=A.JPM_NAME AND D.FROM_VERSION_MAJOR=A.VERSION_MAJOR AND\n" +
+                      "    D.FROM_VERSION_MINOR=A.VERSION_MINOR AND D.FROM_VERSION_PATCH=A.VERSION_PATCH\n" +
+                      "ORDER BY A.JPM_NAME, A.VERSION_MAJOR, A.VERSION_MINOR, A.VERSION_PATCH;";
+            } else {
+                sql = "SELECT L.JPM_NAME, L.VERSION_MAJOR, L.VERSION_MINOR, L.VERSION_PATCH,\n" +
+                      "       D.TO_JPM_NAME, D.TO_VERSION_MAJOR, D.TO_VERSION_MINOR, D.TO_VERSION_PATCH\n" +
+                      "FROM ARTIFACT_LOG L LEFT JOIN DEPENDENCIES D ON\n" +
+                      "    D.FROM_JPM_NAME=L.JPM_NAME AND D.FROM_VERSION_MAJOR=L.VERSION_MAJOR AND\n" +
+                      "    D.FROM_VERSION_MINOR=L.VERSION_MINOR AND D.FROM_VERSION_PATCH=L.VERSION_PATCH\n" +
+                      "WHERE L.SEQ > ? ORDER BY L.SEQ;";
+            }
+            try (var query = Profiler.query(sql); PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+                if (snapshot != null) {
+                    // Auto increment values can become visible out of order, so re-read a window
+                    pstmt.setLong(1, Math.max(0, snapshot.getSequence() - SYNC_OVERLAP));
+                }
+                ResultSet rs = pstmt.executeQuery();
+                String current = null;
+                List<JpmFile.JpmReference> dependencies = null;
+                while (rs.next()) {
+                    query.add(1);
+                    var name = rs.getString(1);
+                    var version = "" + rs.getInt(2) + "." + rs.getInt(3) + "." + rs.getInt(4);
+                    if (!(name + "-" + version).equals(current)) {
+                        current = name + "-" + version;
+                        if (!builder.hasArtifact(name, version)) {
+                            added++;
+                        }
+                        dependencies = builder.putArtifact(name, version);
+                    }
+                    var dependencyName = rs.getString(5);
+                    if (dependencyName != null) {
+                        var dependencyVersion = "" + rs.getInt(6) + "." + rs.getInt(7) + "." + rs.getInt(8);
+                        dependencies.add(new JpmFile.JpmReference(dependencyName, dependencyVersion));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("Could not sync metadata snapshot: " + e.getMessage(), e);
+        }
+        if (snapshot == null || added > 0 || sequence != snapshot.getSequence()) {
+            builder.setSequence(Math.max(sequence, snapshot == null ? 0 : snapshot.getSequence()));
+            builder.write(_snapshotPath);
+        } else {
+            _snapshotPath.toFile().setLastModified(System.currentTimeMillis());
+        }
+        System.out.println((snapshot == null ? "Fetched " : "Synced ") + added + " new artifacts into " + _snapshotPath +
+                           " (sequence " + sequence + ")");
+        return added;
+    }
+
+    public JpmFile getJpm(String name, String version) {
+        var snapshot = getSnapshot();
+        if (snapshot != null) {
+            var jpmFile = snapshot.getJpm(name, version);
+            if (jpmFile != null) {
+                return jpmFile;
+            }
         }
+        var parsed = Version.parse(version);
+        int major = parsed.getMajor();
+        int minor = parsed.getMinor();
+        int patch = parsed.getPatch();
+        JpmFile jpmFile = null;
         String sql = "SELECT JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH FROM ARTIFACTS " +
                      "WHERE JPM_NAME=? AND VERSION_MAJOR=? AND VERSION_MINOR=? AND VERSION_PATCH=?;";
-        try (PreparedStatement pstmt = _connection.prepareStatement(sql)) {
+        try (var query = Profiler.query(sql); PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
             pstmt.setString(1, name);
             pstmt.setInt(2, major);
             pstmt.setInt(3, minor);
             pstmt.setInt(4, patch);
             ResultSet rs = pstmt.executeQuery();
-            if (!rs.first()) {
+            if (!rs.next()) {
                 return null;
             }
+            query.add(1);
             String resultName = rs.getString(1);
             int resultMajor = rs.getInt(2);
             int resultMinor = rs.getInt(3);
             int resultPatch = rs.getInt(4);
             jpmFile = JpmFile.createJpmFile(resultName, "" + resultMajor + "." + resultMinor + "." + resultPatch);
         } catch (SQLException e) {
+            throw new RuntimeException("Could not look up " + name + "-" + version + ": " + e.getMessage(), e);
         }
         sql = "SELECT TO_JPM_NAME, TO_VERSION_MAJOR, TO_VERSION_MINOR, TO_VERSION_PATCH FROM DEPENDENCIES " +
               "WHERE FROM_JPM_NAME=? AND FROM_VERSION_MAJOR=? AND FROM_VERSION_MINOR=? AND FROM_VERSION_PATCH=?;";
-        try (PreparedStatement pstmt = _connection.prepareStatement(sql)) {
+        try (var query = Profiler.query(sql); PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
             pstmt.setString(1, name);
             pstmt.setInt(2, major);
             pstmt.setInt(3, minor);
             pstmt.setInt(4, patch);
             ResultSet rs = pstmt.executeQuery();
             while (rs.next()) {
+                query.add(1);
                 String resultName = rs.getString(1);
                 int resultMajor = rs.getInt(2);
                 int resultMinor = rs.getInt(3);
@@ -228,33 +442,161 @@ public class JpmDatabase implements AutoCloseable {
                 jpmFile.getMainDependencies().add(jpmFileDep);
             }
         } catch (SQLException e) {
+            throw new RuntimeException("Could not look up dependencies of " + name + "-" + version + ": " + e.getMessage(), e);
         }
         return jpmFile;
     }
     
+    private static final int CLOSURE_ROOTS_PER_QUERY = 200;
+
+    private static String getClosureQuery(int roots) {
+        var sql = new StringBuilder();
+        sql.append("WITH RECURSIVE JPM_CLOSURE(JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH) AS (\n");
+        sql.append("    SELECT JPM_NAME, VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH FROM ARTIFACTS WHERE\n");
+        for (int i = 0; i < roots; i++) {
+            sql.append(i == 0 ? "        " : "        OR ");
+            sql.append("(JPM_NAME=? AND VERSION_MAJOR=? AND VERSION_MINOR=? AND VERSION_PATCH=?)\n");
+        }
+        sql.append("    UNION\n");
+        sql.append("    SELECT D.TO_JPM_NAME, D.TO_VERSION_MAJOR, D.TO_VERSION_MINOR, D.TO_VERSION_PATCH\n");
+        sql.append("    FROM DEPENDENCIES D JOIN JPM_CLOSURE C ON\n");
+        sql.append("        D.FROM_JPM_NAME=C.JPM_NAME AND D.FROM_VERSION_MAJOR=C.VERSION_MAJOR AND\n");
+        sql.append("        D.FROM_VERSION_MINOR=C.VERSION_MINOR AND D.FROM_VERSION_PATCH=C.VERSION_PATCH\n");
+        sql.append(")\n");
+        sql.append("SELECT C.JPM_NAME, C.VERSION_MAJOR, C.VERSION_MINOR, C.VERSION_PATCH,\n");
+        sql.append("       D.TO_JPM_NAME, D.TO_VERSION_MAJOR, D.TO_VERSION_MINOR, D.TO_VERSION_PATCH\n");
+        sql.append("FROM JPM_CLOSURE C\n");
+        sql.append("JOIN ARTIFACTS A ON\n");
+        sql.append("    A.JPM_NAME=C.JPM_NAME AND A.VERSION_MAJOR=C.VERSION_MAJOR AND\n");
+        sql.append("    A.VERSION_MINOR=C.VERSION_MINOR AND A.VERSION_PATCH=C.VERSION_PATCH\n");
+        sql.append("LEFT JOIN DEPENDENCIES D ON\n");
+        sql.append("    D.FROM_JPM_NAME=C.JPM_NAME AND D.FROM_VERSION_MAJOR=C.VERSION_MAJOR AND\n");
+        sql.append("    D.FROM_VERSION_MINOR=C.VERSION_MINOR AND D.FROM_VERSION_PATCH=C.VERSION_PATCH\n");
+        sql.append("ORDER BY C.JPM_NAME, C.VERSION_MAJOR, C.VERSION_MINOR, C.VERSION_PATCH, D.TO_JPM_NAME;");
+        return sql.toString();
+    }
+
+    public Map<String, JpmFile> getJpmClosure(Collection<JpmFile.JpmReference> roots) {
+        var snapshot = getSnapshot();
+        if (snapshot == null) {
+            return queryJpmClosure(roots);
+        }
+        var closure = new LinkedHashMap<String, JpmFile>();
+        var missing = new ArrayList<JpmFile.JpmReference>();
+        var stack = new ArrayList<JpmFile.JpmReference>(roots);
+        while (!stack.isEmpty()) {
+            var jpmRef = stack.remove(stack.size() - 1);
+            var key = jpmRef.getName() + "-" + jpmRef.getVersion();
+            if (closure.containsKey(key)) {
+                continue;
+            }
+            var jpmFile = snapshot.getJpm(jpmRef.getName(), jpmRef.getVersion());
+            if (jpmFile == null) {
+                missing.add(jpmRef);
+                continue;
+            }
+            closure.put(key, jpmFile);
+            stack.addAll(jpmFile.getMainDependencies());
+        }
+        if (!missing.isEmpty()) {
+            for (var jpmFile: queryJpmClosure(missing).entrySet()) {
+                closure.putIfAbsent(jpmFile.getKey(), jpmFile.getValue());
+            }
+        }
+        return closure;
+    }
+
+    private Map<String, JpmFile> queryJpmClosure(Collection<JpmFile.JpmReference> roots) {
+        var closure = new LinkedHashMap<String, JpmFile>();
+        var pending = new ArrayList<JpmFile.JpmReference>(roots);
+        for (int start = 0; start < pending.size(); start += CLOSURE_ROOTS_PER_QUERY) {
+            var chunk = pending.subList(start, Math.min(pending.size(), start + CLOSURE_ROOTS_PER_QUERY));
+            var sql = getClosureQuery(chunk.size());
+            try (var query = Profiler.query(sql); PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+                int index = 1;
+                for (var root: chunk) {
+                    var version = Version.parse(root.getVersion());
+                    pstmt.setString(index++, root.getName());
+                    pstmt.setInt(index++, version.getMajor());
+                    pstmt.setInt(index++, version.getMinor());
+                    pstmt.setInt(index++, version.getPatch());
+                }
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    query.add(1);
+                    var name = rs.getString(1);
+                    var version = "" + rs.getInt(2) + "." + rs.getInt(3) + "." + rs.getInt(4);
+                    var jpmFile = closure.get(name + "-" + version);
+                    if (jpmFile == null) {
+                        jpmFile = JpmFile.createJpmFile(name, version);
+                        closure.put(name + "-" + version, jpmFile);
+                    }
+                    var dependencyName = rs.getString(5);
+                    if (dependencyName != null) {
+                        var dependencyVersion = "" + rs.getInt(6) + "." + rs.getInt(7) + "." + rs.getInt(8);
+                        jpmFile.getMainDependencies().add(new JpmFile.JpmReference(dependencyName, dependencyVersion));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException("Could not resolve dependency closure: " + e.getMessage(), e);
+            }
+        }
+        return closure;
+    }
+
     public JpmFile getJpm(String name) {
-        String sql = "SELECT VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH FROM ARTIFACTS " +
-                     "WHERE JPM_NAME=? ORDER BY VERSION_MAJOR DESC, VERSION_MINOR DESC, VERSION_PATCH DESC;";
-        try (PreparedStatement pstmt = _connection.prepareStatement(sql)) {
-            pstmt.setString(1, name);
+        return getLatestJpm(name, -1, -1);
+    }
+
+    public JpmFile getLatestJpm(String name, int major) {
+        return getLatestJpm(name, major, -1);
+    }
+
+    public JpmFile getLatestJpm(String name, int major, int minor) {
+        var snapshot = getSnapshot();
+        if (snapshot != null) {
+            var jpmFile = snapshot.getLatestJpm(name, major, minor);
+            if (jpmFile != null) {
+                return jpmFile;
+            }
+        }
+        var sql = new StringBuilder("SELECT VERSION_MAJOR, VERSION_MINOR, VERSION_PATCH FROM ARTIFACTS WHERE JPM_NAME=?");
+        if (major >= 0) {
+            sql.append(" AND VERSION_MAJOR=?");
+        }
+        if (major >= 0 && minor >= 0) {
+            sql.append(" AND VERSION_MINOR=?");
+        }
+        sql.append(" ORDER BY VERSION_MAJOR DESC, VERSION_MINOR DESC, VERSION_PATCH DESC LIMIT 1;");
+        try (var query = Profiler.query(sql.toString()); PreparedStatement pstmt = getConnection().prepareStatement(sql.toString())) {
+            int index = 1;
+            pstmt.setString(index++, name);
+            if (major >= 0) {
+                pstmt.setInt(index++, major);
+            }
+            if (major >= 0 && minor >= 0) {
+                pstmt.setInt(index++, minor);
+            }
             ResultSet rs = pstmt.executeQuery();
-            if (!rs.first()) {
+            if (!rs.next()) {
                 return null;
             }
-            int resultMajor = rs.getInt(1);
-            int resultMinor = rs.getInt(2);
-            int resultPatch = rs.getInt(3);
-            return getJpm(name, "" + resultMajor + "." + resultMinor + "." + resultPatch);
+            query.add(1);
+            return getJpm(name, Version.of(rs.getInt(1), rs.getInt(2), rs.getInt(3)).toString());
         } catch (SQLException e) {
+            throw new RuntimeException("Could not look up the latest version of " + name + ": " + e.getMessage(), e);
         }
-        return null;
     }
 
     public void close() {
         try {
             if (_connection != null) {
                 _connection.commit();
-                _connection.close();
+                if (_pooling) {
+                    _pooledConnections.computeIfAbsent(_url, (k) -> new ConcurrentLinkedDeque<>()).push(_connection);
+                } else {
+                    _connection.close();
+                }
             }
         } catch (SQLException e) {
         }
@@ -1,14 +1,15 @@
 package org.jpm;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
 
@@ -54,93 +55,213 @@ public class JpmFile {
         return _main;
     }
 
-    public static JpmFile fromFile(String jpmString) {
-        JpmFile file = new JpmFile();
-        var jpmModulePattern = Pattern.compile(".*module: \\\"([^\\\"]*)-(\\d+\\.\\d+\\.\\d+)\\\".*", Pattern.DOTALL);
-        var jpmDepPattern = Pattern.compile(".*dependencies: \\[(.*)\\].*", Pattern.DOTALL);
+    // Reads the format written by toBytes() in a single pass without building
+    // intermediate strings. Unknown keys are skipped so that newer files can be
+    // read. A reference is split at its last '-', which allows hyphenated names.
+    private static class Parser {
+        private ByteBuffer _buffer;
 
-        var jpmModuleMatcher = jpmModulePattern.matcher(jpmString);
-        if (!jpmModuleMatcher.matches()) {
-            return null;
+        Parser(ByteBuffer buffer) {
+            _buffer = buffer;
         }
 
-        file._main = new JpmReference(jpmModuleMatcher.group(1), jpmModuleMatcher.group(2));
+        private RuntimeException error(String message) {
+            return new RuntimeException("Malformed jpm file at offset " + _buffer.position() + ": " + message);
+        }
 
-        var jpmDepMatcher = jpmDepPattern.matcher(jpmString);
-        if (!jpmDepMatcher.matches()) {
-            return null;
+        private int peek() {
+            while (_buffer.hasRemaining()) {
+                int c = _buffer.get(_buffer.position());
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return c;
+                }
+                _buffer.position(_buffer.position() + 1);
+            }
+            return -1;
         }
 
-        var jpmDepsStr = jpmDepMatcher.group(1);
-        jpmDepsStr = jpmDepsStr.replaceAll("\n", "");
-        jpmDepsStr = jpmDepsStr.replaceAll(" ", "");
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            _buffer.position(_buffer.position() + 1);
+        }
 
-        var jpmDeps = jpmDepsStr.split(",");
+        private boolean accept(char c) {
+            if (peek() != c) {
+                return false;
+            }
+            _buffer.position(_buffer.position() + 1);
+            return true;
+        }
 
-        for (var jpmDep : jpmDeps) {
-            if (!jpmDep.contains("-")) {
-                continue;
+        private String key() {
+            peek();
+            int start = _buffer.position();
+            while (_buffer.hasRemaining()) {
+                int c = _buffer.get(_buffer.position());
+                if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && c != '_') {
+                    break;
+                }
+                _buffer.position(_buffer.position() + 1);
+            }
+            if (_buffer.position() == start) {
+                throw error("expected key");
             }
-            jpmDep = jpmDep.substring(1, jpmDep.length() - 1);
-            var jpmDepComponents = jpmDep.split("-");
-            var jpmName = jpmDepComponents[0];
-            var jpmVersion = jpmDepComponents[1];
-            file._mainDependencies.add(new JpmReference(jpmName, jpmVersion));
+            return decode(start, _buffer.position());
         }
-        return file;
-    }
 
-    public static JpmFile fromJar(Path jarFilePath) {
-        try {
-            var jarFile = new JarFile(jarFilePath.toFile());
-            var jpmEntry = jarFile.getEntry("META-INF/jpm/main.jpm");
-            if (jpmEntry == null) {
-                var pattern = Pattern.compile("(.*)-(\\d+\\.\\d+\\.\\d+)\\.jar");
-                var matcher = pattern.matcher(jarFilePath.getFileName().toString());
-                if (matcher.matches()) {
-                    var name = matcher.group(1);
-                    var version = matcher.group(2);
-                    var jpmFile = createJpmFile(name, version);
-                    jpmFile.installJar(jarFilePath);
-                    return jpmFile;
+        private JpmReference reference() {
+            expect('"');
+            int start = _buffer.position();
+            int dash = -1;
+            for (;;) {
+                if (!_buffer.hasRemaining()) {
+                    throw error("unterminated string");
+                }
+                int c = _buffer.get();
+                if (c == '"') {
+                    break;
+                } else if (c == '-') {
+                    dash = _buffer.position() - 1;
+                } else if (c == '\\' || c == '\n') {
+                    throw error("unexpected character in string");
+                }
+            }
+            int end = _buffer.position() - 1;
+            if (dash <= start || dash == end - 1) {
+                throw error("expected name-version");
+            }
+            return new JpmReference(decode(start, dash), decode(dash + 1, end));
+        }
+
+        private void skipValue() {
+            if (peek() == '"') {
+                reference();
+            } else if (accept('[')) {
+                while (!accept(']')) {
+                    skipValue();
+                    accept(',');
+                }
+            } else {
+                throw error("expected value");
+            }
+        }
+
+        private String decode(int start, int end) {
+            if (_buffer.hasArray()) {
+                return new String(_buffer.array(), _buffer.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+            }
+            var bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = _buffer.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        JpmFile parse() {
+            var file = new JpmFile();
+            boolean dependencies = false;
+            expect('{');
+            while (!accept('}')) {
+                var key = key();
+                expect(':');
+                if (key.equals("module")) {
+                    file._main = reference();
+                } else if (key.equals("dependencies")) {
+                    expect('[');
+                    while (!accept(']')) {
+                        file._mainDependencies.add(reference());
+                        accept(',');
+                    }
+                    dependencies = true;
+                } else {
+                    skipValue();
                 }
-                throw new RuntimeException("Could not install JPM file into " + jarFilePath);
+                accept(',');
+            }
+            if (file._main == null || !dependencies) {
+                return null;
             }
-            var jpmStream = jarFile.getInputStream(jpmEntry);
-            var jpmStr = new StringBuilder();
-            try (var reader = new BufferedReader(new InputStreamReader(jpmStream, Charset.forName(StandardCharsets.UTF_8.name())))) {
-                int c = 0;
-                while ((c = reader.read()) != -1) {
-                    jpmStr.append((char) c);
+            return file;
+        }
+    }
+
+    public static JpmFile parse(ByteBuffer buffer) {
+        return new Parser(buffer.duplicate()).parse();
+    }
+
+    public static JpmFile parse(InputStream in) throws IOException {
+        return parse(ByteBuffer.wrap(in.readAllBytes()));
+    }
+
+    public static JpmFile fromPath(Path path) throws IOException {
+        return parse(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    public static JpmFile fromFile(String jpmString) {
+        return parse(ByteBuffer.wrap(jpmString.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static final Pattern _jarPattern = Pattern.compile("(.*)-(\\d+\\.\\d+\\.\\d+)\\.jar");
+
+    // Reads the embedded main.jpm of each jar. Jars without one get a jpm file
+    // derived from their file name, and an update that embeds it is added to
+    // updates so the caller can rewrite all jars in one parallel batch.
+    public static List<JpmFile> fromJars(List<Path> jarFilePaths, Map<Path, JarWriter> updates) {
+        var jpms = new ArrayList<JpmFile>();
+        for (var jarFilePath: jarFilePaths) {
+            try (var jarFile = new JarFile(jarFilePath.toFile())) {
+                var jpmEntry = jarFile.getEntry("META-INF/jpm/main.jpm");
+                if (jpmEntry == null) {
+                    var matcher = _jarPattern.matcher(jarFilePath.getFileName().toString());
+                    if (!matcher.matches()) {
+                        throw new RuntimeException("Could not install JPM file into " + jarFilePath);
+                    }
+                    var jpmFile = createJpmFile(matcher.group(1), matcher.group(2));
+                    updates.computeIfAbsent(jarFilePath, JarWriter::new).addEntry("META-INF/jpm/main.jpm", jpmFile.toBytes());
+                    jpms.add(jpmFile);
+                    continue;
                 }
+                try (var jpmStream = jarFile.getInputStream(jpmEntry)) {
+                    jpms.add(parse(jpmStream));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("Could not install JPM file into " + jarFilePath + ": " + e);
             }
-            return fromFile(jpmStr.toString());
-        } catch (Exception e) {
-            throw new RuntimeException("Could not install JPM file into " + jarFilePath + ": " + e);
         }
+        return jpms;
     }
 
-    public String toString() {
-        StringBuilder str = new StringBuilder();
-        str.append("{\n");
-        str.append("    module: \"" + _main.getName() + "-" + _main.getVersion() + "\"\n");
+    public static List<JpmFile> fromJars(List<Path> jarFilePaths) {
+        var updates = new LinkedHashMap<Path, JarWriter>();
+        var jpms = fromJars(jarFilePaths, updates);
+        JarWriter.updateAll(new ArrayList<>(updates.values()));
+        return jpms;
+    }
+
+    public static JpmFile fromJar(Path jarFilePath) {
+        return fromJars(List.of(jarFilePath)).get(0);
+    }
+
+    public byte[] toBytes() {
+        var str = new StringBuilder(48 + 32 * _mainDependencies.size());
+        str.append("{\n    module: \"").append(_main.getName()).append('-').append(_main.getVersion()).append("\"\n");
         str.append("    dependencies: [");
-        int i = 0;
-        for (var dependency: _mainDependencies) {
-            String dependencyName = dependency.getName();
-            String dependencyVersion = dependency.getVersion();
-            if (dependencyVersion == null) {
-                throw new RuntimeException("Dependency version can't be null for " + dependencyName);
-            }
-            if (i++ != 0) {
-                str.append(",");
+        for (int i = 0; i < _mainDependencies.size(); i++) {
+            var dependency = _mainDependencies.get(i);
+            if (dependency.getVersion() == null) {
+                throw new RuntimeException("Dependency version can't be null for " + dependency.getName());
             }
-            str.append("\n");
-            str.append("        \"" + dependencyName + "-" + dependencyVersion + "\"");
+            str.append(i == 0 ? "\n" : ",\n");
+            str.append("        \"").append(dependency.getName()).append('-').append(dependency.getVersion()).append('"');
         }
-        str.append("\n    ]\n");
-        str.append("}\n");
-        return str.toString();
+        str.append("\n    ]\n}\n");
+        return str.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String toString() {
+        return new String(toBytes(), StandardCharsets.UTF_8);
     }
 
     public static JpmFile createJpmFile(String name, String version) {
@@ -150,18 +271,17 @@ public class JpmFile {
     }
 
     public void installJar(Path jarPath) {
-        installDir(jarPath.getParent());
-        Cmd.run("jar --update --file=" + jarPath.toString() + " -C " + jarPath.getParent() + " " + "META-INF/jpm/main.jpm");
-        jarPath.getParent().resolve("META-INF").toFile().delete();
+        var jar = new JarWriter(jarPath);
+        jar.addEntry("META-INF/jpm/main.jpm", toBytes());
+        jar.update();
     }
 
     public void installDir(Path dir) {
         Path jpmPath = dir.resolve("META-INF").resolve("jpm");
         Path jpmFilePath = jpmPath.resolve("main.jpm");
-        String jpmFileString = toString();
         jpmPath.toFile().mkdirs();
         try {
-            Files.write(jpmFilePath, jpmFileString.getBytes());
+            Files.write(jpmFilePath, toBytes());
         } catch (IOException e) {
             throw new RuntimeException("Could not create JPM file: ", e);
         }
@@ -0,0 +1,327 @@
+package org.jpm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The subset of FTP that jpm's client uses: login, binary passive transfers
+// with RETR and STOR, SIZE, and directory navigation. Uploads are written to
+// a temporary file and moved into place, so concurrent downloads see either
+// the old or the new artifact, never a partial one.
+public class LocalFtpServer implements AutoCloseable {
+    private static final int DATA_TIMEOUT_MILLIS = 30000;
+
+    private Path _root;
+    private InetAddress _address;
+    private int _port;
+    private String _user;
+    private String _password;
+    private ServerSocket _serverSocket;
+    private ExecutorService _pool;
+    private Set<Socket> _connections = ConcurrentHashMap.newKeySet();
+    private AtomicLong _sessions = new AtomicLong();
+    private AtomicLong _downloads = new AtomicLong();
+    private AtomicLong _uploads = new AtomicLong();
+
+    public LocalFtpServer(Path root, InetAddress address, int port, String user, String password) {
+        _root = root.toAbsolutePath().normalize();
+        _address = address;
+        _port = port;
+        _user = user;
+        _password = password;
+    }
+
+    public void start() throws IOException {
+        _root.toFile().mkdirs();
+        _serverSocket = new ServerSocket(_port, 128, _address);
+        _pool = Executors.newCachedThreadPool((runnable) -> {
+            var thread = new Thread(runnable, "ftp-session");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _pool.execute(this::accept);
+    }
+
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    public long getSessionCount() {
+        return _sessions.get();
+    }
+
+    public long getDownloadCount() {
+        return _downloads.get();
+    }
+
+    public long getUploadCount() {
+        return _uploads.get();
+    }
+
+    private void accept() {
+        while (!_serverSocket.isClosed()) {
+            try {
+                var socket = _serverSocket.accept();
+                // Replies are small writes right after each other, don't let Nagle hold them back
+                socket.setTcpNoDelay(true);
+                _sessions.incrementAndGet();
+                _connections.add(socket);
+                _pool.execute(() -> {
+                    try (socket) {
+                        new Session(socket).run();
+                    } catch (IOException e) {
+                        // The client went away
+                    } finally {
+                        _connections.remove(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!_serverSocket.isClosed()) {
+                    System.err.println("FTP server could not accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            _serverSocket.close();
+        } catch (IOException e) {
+        }
+        for (var socket: _connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        _pool.shutdownNow();
+    }
+
+    private class Session {
+        private Socket _socket;
+        private Writer _out;
+        private String _directory = "/";
+        private String _pendingUser;
+        private boolean _loggedIn;
+        private ServerSocket _passive;
+
+        Session(Socket socket) {
+            _socket = socket;
+        }
+
+        private void reply(String reply) throws IOException {
+            _out.write(reply);
+            _out.write("\r\n");
+            _out.flush();
+        }
+
+        // Resolves a client path against the current directory, or null if it leaves the root
+        private Path resolve(String name) {
+            var path = name.startsWith("/") ? name : _directory + "/" + name;
+            var resolved = _root.resolve(path.replaceAll("^/+", "")).normalize();
+            return resolved.startsWith(_root) ? resolved : null;
+        }
+
+        private Socket openData() throws IOException {
+            try (var passive = _passive) {
+                _passive = null;
+                passive.setSoTimeout(DATA_TIMEOUT_MILLIS);
+                return passive.accept();
+            }
+        }
+
+        private void retrieve(Path path) throws IOException {
+            if (path == null || !path.toFile().isFile()) {
+                reply("550 No such file");
+                return;
+            }
+            if (_passive == null) {
+                reply("425 Use PASV or EPSV first");
+                return;
+            }
+            InputStream in;
+            try {
+                in = Files.newInputStream(path);
+            } catch (IOException e) {
+                reply("550 Could not open file: " + e.getMessage());
+                return;
+            }
+            try (in) {
+                reply("150 Opening BINARY mode data connection");
+                try (var data = openData()) {
+                    in.transferTo(data.getOutputStream());
+                }
+                _downloads.incrementAndGet();
+                reply("226 Transfer complete");
+            } catch (IOException e) {
+                reply("426 Transfer aborted: " + e.getMessage());
+            }
+        }
+
+        private void store(Path path) throws IOException {
+            if (path == null || path.getParent() == null || !path.getParent().toFile().isDirectory()) {
+                reply("553 Not a valid file name");
+                return;
+            }
+            if (_passive == null) {
+                reply("425 Use PASV or EPSV first");
+                return;
+            }
+            var partFile = path.resolveSibling("." + path.getFileName() + "." + ThreadLocalRandom.current().nextLong(Long.MAX_VALUE) + ".part");
+            reply("150 Opening BINARY mode data connection");
+            try (var data = openData()) {
+                try (OutputStream out = Files.newOutputStream(partFile)) {
+                    data.getInputStream().transferTo(out);
+                }
+                Files.move(partFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                _uploads.incrementAndGet();
+                reply("226 Transfer complete");
+            } catch (IOException e) {
+                partFile.toFile().delete();
+                reply("451 Upload failed: " + e.getMessage());
+            }
+        }
+
+        private void enterPassive(boolean extended) throws IOException {
+            if (_passive != null) {
+                _passive.close();
+            }
+            var address = _socket.getLocalAddress();
+            _passive = new ServerSocket(0, 1, address);
+            int port = _passive.getLocalPort();
+            if (extended) {
+                reply("229 Entering Extended Passive Mode (|||" + port + "|)");
+            } else {
+                var host = address.getHostAddress().replace('.', ',');
+                reply("227 Entering Passive Mode (" + host + "," + (port >> 8) + "," + (port & 0xff) + ")");
+            }
+        }
+
+        void run() throws IOException {
+            _out = new OutputStreamWriter(_socket.getOutputStream(), StandardCharsets.UTF_8);
+            var in = new BufferedReader(new InputStreamReader(_socket.getInputStream(), StandardCharsets.UTF_8));
+            reply("220 jpm local repository");
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    var command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                    var argument = space < 0 ? "" : line.substring(space + 1);
+                    if (!handle(command, argument)) {
+                        return;
+                    }
+                }
+            } finally {
+                if (_passive != null) {
+                    _passive.close();
+                }
+            }
+        }
+
+        private boolean handle(String command, String argument) throws IOException {
+            switch (command) {
+            case "USER":
+                _pendingUser = argument;
+                _loggedIn = false;
+                reply("331 Password required");
+                return true;
+            case "PASS":
+                _loggedIn = _user.equals(_pendingUser) && _password.equals(argument);
+                reply(_loggedIn ? "230 Logged in" : "530 Login incorrect");
+                return true;
+            case "QUIT":
+                reply("221 Goodbye");
+                return false;
+            case "NOOP":
+                reply("200 OK");
+                return true;
+            case "SYST":
+                reply("215 UNIX Type: L8");
+                return true;
+            case "FEAT":
+                reply("211-Features:\r\n SIZE\r\n EPSV\r\n211 End");
+                return true;
+            }
+            if (!_loggedIn) {
+                reply("530 Not logged in");
+                return true;
+            }
+            switch (command) {
+            case "TYPE":
+            case "MODE":
+            case "STRU":
+            case "OPTS":
+                reply("200 OK");
+                break;
+            case "PWD":
+                reply("257 \"" + _directory + "\"");
+                break;
+            case "CWD": {
+                var path = resolve(argument);
+                if (path == null || !path.toFile().isDirectory()) {
+                    reply("550 No such directory");
+                } else {
+                    _directory = "/" + _root.relativize(path).toString().replace('\\', '/');
+                    reply("250 OK");
+                }
+                break;
+            }
+            case "CDUP":
+                _directory = "/";
+                reply("250 OK");
+                break;
+            case "MKD": {
+                var path = resolve(argument);
+                if (path == null || !path.toFile().mkdirs()) {
+                    reply("550 Could not create directory");
+                } else {
+                    reply("257 Created");
+                }
+                break;
+            }
+            case "SIZE": {
+                var path = resolve(argument);
+                if (path == null || !path.toFile().isFile()) {
+                    reply("550 No such file");
+                } else {
+                    reply("213 " + path.toFile().length());
+                }
+                break;
+            }
+            case "PASV":
+                enterPassive(false);
+                break;
+            case "EPSV":
+                enterPassive(true);
+                break;
+            case "RETR":
+                retrieve(resolve(argument));
+                break;
+            case "STOR":
+                store(resolve(argument));
+                break;
+            default:
+                reply("502 Command not implemented");
+                break;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.jpm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Layout (big endian):
+//   header:       magic, format, sequence (long), name count, artifact count, dependency count
+//   names:        string offset, first artifact, artifact count        (sorted by UTF-8 bytes)
+//   artifacts:    packed version (long), first dependency, dependency count  (sorted per name)
+//   dependencies: name id, packed version (long)
+//   strings:      length (short), UTF-8 bytes
+public class MetadataSnapshot {
+    private static final int MAGIC = 0x4a504d53;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int NAME_SIZE = 12;
+    private static final int ARTIFACT_SIZE = 16;
+    private static final int DEPENDENCY_SIZE = 12;
+    private static Map<Path, MetadataSnapshot> _snapshots = new ConcurrentHashMap<>();
+
+    private long _size;
+    private long _lastModified;
+    private ByteBuffer _buffer;
+    private long _sequence;
+    private int _nameCount;
+    private int _artifactCount;
+    private int _dependencyCount;
+    private int _artifactsOffset;
+    private int _dependenciesOffset;
+    private int _stringsOffset;
+    private String[] _names;
+
+    private MetadataSnapshot(ByteBuffer buffer) {
+        _buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new RuntimeException("Not a metadata snapshot");
+        }
+        _sequence = buffer.getLong(8);
+        _nameCount = buffer.getInt(16);
+        _artifactCount = buffer.getInt(20);
+        _dependencyCount = buffer.getInt(24);
+        _artifactsOffset = HEADER_SIZE + _nameCount * NAME_SIZE;
+        _dependenciesOffset = _artifactsOffset + _artifactCount * ARTIFACT_SIZE;
+        _stringsOffset = _dependenciesOffset + _dependencyCount * DEPENDENCY_SIZE;
+        if (_nameCount < 0 || _artifactCount < 0 || _dependencyCount < 0 || _stringsOffset > buffer.capacity()) {
+            throw new RuntimeException("Truncated metadata snapshot");
+        }
+        _names = new String[_nameCount];
+    }
+
+    public static MetadataSnapshot open(Path path) {
+        var file = path.toFile();
+        if (!file.exists()) {
+            return null;
+        }
+        var snapshot = _snapshots.get(path);
+        if (snapshot != null && snapshot._size == file.length() && snapshot._lastModified == file.lastModified()) {
+            return snapshot;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            snapshot = new MetadataSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Discarding unreadable metadata snapshot " + path + ": " + e.getMessage());
+            _snapshots.remove(path);
+            return null;
+        }
+        snapshot._size = size;
+        snapshot._lastModified = lastModified;
+        _snapshots.put(path, snapshot);
+        return snapshot;
+    }
+
+    public long getSequence() {
+        return _sequence;
+    }
+
+    public int getArtifactCount() {
+        return _artifactCount;
+    }
+
+    private String getName(int id) {
+        var name = _names[id];
+        if (name == null) {
+            int offset = _stringsOffset + _buffer.getInt(HEADER_SIZE + id * NAME_SIZE);
+            var bytes = new byte[_buffer.getShort(offset) & 0xffff];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = _buffer.get(offset + 2 + i);
+            }
+            name = new String(bytes, StandardCharsets.UTF_8);
+            _names[id] = name;
+        }
+        return name;
+    }
+
+    private int compareName(int id, byte[] key) {
+        int offset = _stringsOffset + _buffer.getInt(HEADER_SIZE + id * NAME_SIZE);
+        int length = _buffer.getShort(offset) & 0xffff;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (_buffer.get(offset + 2 + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    private int findName(String name) {
+        var key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = _nameCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int diff = compareName(mid, key);
+            if (diff < 0) {
+                low = mid + 1;
+            } else if (diff > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private JpmFile toJpmFile(int nameId, int artifact) {
+        int offset = _artifactsOffset + artifact * ARTIFACT_SIZE;
+        var jpmFile = JpmFile.createJpmFile(getName(nameId), Version.toString(_buffer.getLong(offset)));
+        int first = _buffer.getInt(offset + 8);
+        int count = _buffer.getInt(offset + 12);
+        for (int i = first; i < first + count; i++) {
+            int dependency = _dependenciesOffset + i * DEPENDENCY_SIZE;
+            var name = getName(_buffer.getInt(dependency));
+            jpmFile.getMainDependencies().add(new JpmFile.JpmReference(name, Version.toString(_buffer.getLong(dependency + 4))));
+        }
+        return jpmFile;
+    }
+
+    public JpmFile getJpm(String name) {
+        return getLatestJpm(name, -1, -1);
+    }
+
+    public JpmFile getLatestJpm(String name, int major, int minor) {
+        int nameId = findName(name);
+        if (nameId < 0) {
+            return null;
+        }
+        long low = 0;
+        long high = Long.MAX_VALUE;
+        if (major >= 0 && minor >= 0) {
+            low = Version.pack(major, minor, 0);
+            high = low + Version.pack(0, 1, 0);
+        } else if (major >= 0) {
+            low = Version.pack(major, 0, 0);
+            high = low + Version.pack(1, 0, 0);
+        }
+        // Find the first artifact at or above the exclusive upper bound
+        int first = _buffer.getInt(HEADER_SIZE + nameId * NAME_SIZE + 4);
+        int start = first;
+        int end = first + _buffer.getInt(HEADER_SIZE + nameId * NAME_SIZE + 8);
+        while (start < end) {
+            int mid = (start + end) >>> 1;
+            if (_buffer.getLong(_artifactsOffset + mid * ARTIFACT_SIZE) < high) {
+                start = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        if (start == first || _buffer.getLong(_artifactsOffset + (start - 1) * ARTIFACT_SIZE) < low) {
+            return null;
+        }
+        return toJpmFile(nameId, start - 1);
+    }
+
+    public JpmFile getJpm(String name, String version) {
+        int nameId = findName(name);
+        if (nameId < 0) {
+            return null;
+        }
+        long packed = Version.pack(version);
+        int low = _buffer.getInt(HEADER_SIZE + nameId * NAME_SIZE + 4);
+        int high = low + _buffer.getInt(HEADER_SIZE + nameId * NAME_SIZE + 8) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long candidate = _buffer.getLong(_artifactsOffset + mid * ARTIFACT_SIZE);
+            if (candidate < packed) {
+                low = mid + 1;
+            } else if (candidate > packed) {
+                high = mid - 1;
+            } else {
+                return toJpmFile(nameId, mid);
+            }
+        }
+        return null;
+    }
+
+    public static class Builder {
+        private Map<String, TreeMap<Long, List<JpmFile.JpmReference>>> _artifacts = new HashMap<>();
+        private long _sequence;
+
+        public Builder(MetadataSnapshot base) {
+            if (base == null) {
+                return;
+            }
+            _sequence = base._sequence;
+            for (int nameId = 0; nameId < base._nameCount; nameId++) {
+                int first = base._buffer.getInt(HEADER_SIZE + nameId * NAME_SIZE + 4);
+                int count = base._buffer.getInt(HEADER_SIZE + nameId * NAME_SIZE + 8);
+                for (int artifact = first; artifact < first + count; artifact++) {
+                    var jpmFile = base.toJpmFile(nameId, artifact);
+                    var dependencies = putArtifact(jpmFile.getMain().getName(), jpmFile.getMain().getVersion());
+                    dependencies.addAll(jpmFile.getMainDependencies());
+                }
+            }
+        }
+
+        public void setSequence(long sequence) {
+            _sequence = sequence;
+        }
+
+        public boolean hasArtifact(String name, String version) {
+            var versions = _artifacts.get(name);
+            return versions != null && versions.containsKey(Version.pack(version));
+        }
+
+        public List<JpmFile.JpmReference> putArtifact(String name, String version) {
+            var dependencies = new ArrayList<JpmFile.JpmReference>();
+            _artifacts.computeIfAbsent(name, (k) -> new TreeMap<>()).put(Version.pack(version), dependencies);
+            return dependencies;
+        }
+
+        public void write(Path path) {
+            var names = new TreeMap<String, byte[]>();
+            for (var artifacts: _artifacts.entrySet()) {
+                names.put(artifacts.getKey(), null);
+                for (var dependencies: artifacts.getValue().values()) {
+                    for (var dependency: dependencies) {
+                        names.put(dependency.getName(), null);
+                    }
+                }
+            }
+            var sorted = new ArrayList<String>(names.keySet());
+            sorted.sort((a, b) -> Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+            var ids = new HashMap<String, Integer>();
+            for (var name: sorted) {
+                ids.put(name, ids.size());
+            }
+
+            var nameTable = new ByteArrayOutputStream();
+            var artifactTable = new ByteArrayOutputStream();
+            var dependencyTable = new ByteArrayOutputStream();
+            var strings = new ByteArrayOutputStream();
+            int artifactCount = 0;
+            int dependencyCount = 0;
+            try {
+                var nameOut = new DataOutputStream(nameTable);
+                var artifactOut = new DataOutputStream(artifactTable);
+                var dependencyOut = new DataOutputStream(dependencyTable);
+                var stringOut = new DataOutputStream(strings);
+                for (var name: sorted) {
+                    var bytes = name.getBytes(StandardCharsets.UTF_8);
+                    var versions = _artifacts.get(name);
+                    nameOut.writeInt(stringOut.size());
+                    nameOut.writeInt(artifactCount);
+                    nameOut.writeInt(versions == null ? 0 : versions.size());
+                    stringOut.writeShort(bytes.length);
+                    stringOut.write(bytes);
+                    if (versions == null) {
+                        continue;
+                    }
+                    for (var version: versions.entrySet()) {
+                        artifactOut.writeLong(version.getKey());
+                        artifactOut.writeInt(dependencyCount);
+                        artifactOut.writeInt(version.getValue().size());
+                        artifactCount++;
+                        for (var dependency: version.getValue()) {
+                            dependencyOut.writeInt(ids.get(dependency.getName()));
+                            dependencyOut.writeLong(Version.pack(dependency.getVersion()));
+                            dependencyCount++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not encode metadata snapshot", e);
+            }
+
+            Path tmp = null;
+            try {
+                Files.createDirectories(path.getParent());
+                tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+                try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT);
+                    out.writeLong(_sequence);
+                    out.writeInt(sorted.size());
+                    out.writeInt(artifactCount);
+                    out.writeInt(dependencyCount);
+                    nameTable.writeTo(out);
+                    artifactTable.writeTo(out);
+                    dependencyTable.writeTo(out);
+                    strings.writeTo(out);
+                }
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                if (tmp != null) {
+                    tmp.toFile().delete();
+                }
+                throw new RuntimeException("Could not write metadata snapshot " + path, e);
+            }
+        }
+    }
+}
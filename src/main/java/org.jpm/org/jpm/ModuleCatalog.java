@@ -0,0 +1,187 @@
+package org.jpm;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.module.ModuleFinder;
+import java.lang.module.ModuleReference;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Module names and versions of the jars in lib/ are cached in
+// build/.jpm/modules.cache by path, size and modification time, so only new
+// or changed jars have their descriptors read. The modules of the running
+// JDK are cached in ~/.jpm/system-modules.cache by java.home and version.
+public class ModuleCatalog {
+    public static class Module {
+        private String _name;
+        private String _version;
+        private URI _location;
+
+        public Module(String name, String version, URI location) {
+            _name = name;
+            _version = version;
+            _location = location;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public String getVersion() {
+            return _version;
+        }
+
+        public URI getLocation() {
+            return _location;
+        }
+    }
+
+    private static class JarEntry {
+        long _size;
+        long _modified;
+        Module _module;
+    }
+
+    private static volatile List<Module> _systemModules;
+
+    private Path _cachePath;
+    private Map<String, JarEntry> _jars;
+    private boolean _dirty;
+
+    public ModuleCatalog(Path cachePath) {
+        _cachePath = cachePath;
+    }
+
+    public static ModuleCatalog of(Project project) {
+        return new ModuleCatalog(project.getStatePath().resolve("modules.cache"));
+    }
+
+    private static Module toModule(ModuleReference module) {
+        var descriptor = module.descriptor();
+        return new Module(descriptor.name(), descriptor.rawVersion().orElse(null), module.location().get());
+    }
+
+    private void load() {
+        _jars = new HashMap<>();
+        if (!_cachePath.toFile().exists()) {
+            return;
+        }
+        try {
+            for (var line: Files.readAllLines(_cachePath, StandardCharsets.UTF_8)) {
+                var fields = line.split("\t", -1);
+                var entry = new JarEntry();
+                entry._size = Long.parseLong(fields[1]);
+                entry._modified = Long.parseLong(fields[2]);
+                entry._module = new Module(fields[3], fields[4].isEmpty() ? null : fields[4], Path.of(fields[0]).toUri());
+                _jars.put(fields[0], entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Discarding unreadable module cache " + _cachePath);
+            _jars.clear();
+        }
+    }
+
+    public List<Module> findJars(Path directory) {
+        if (_jars == null) {
+            load();
+        }
+        var modules = new ArrayList<Module>();
+        var files = directory.toFile().listFiles((dir, name) -> name.endsWith(".jar"));
+        if (files == null) {
+            return modules;
+        }
+        Arrays.sort(files);
+        var names = new HashMap<String, File>();
+        for (var file: files) {
+            var key = file.getAbsolutePath();
+            var entry = _jars.get(key);
+            if (entry == null || entry._size != file.length() || entry._modified != file.lastModified()) {
+                entry = new JarEntry();
+                entry._size = file.length();
+                entry._modified = file.lastModified();
+                entry._module = toModule(ModuleFinder.of(file.toPath()).findAll().iterator().next());
+                _jars.put(key, entry);
+                _dirty = true;
+            }
+            var previous = names.put(entry._module.getName(), file);
+            if (previous != null) {
+                throw new RuntimeException("Module " + entry._module.getName() + " is contained in both " + previous + " and " + file);
+            }
+            modules.add(entry._module);
+        }
+        return modules;
+    }
+
+    public void save() {
+        if (!_dirty) {
+            return;
+        }
+        _dirty = false;
+        var str = new StringBuilder();
+        for (var jar: _jars.entrySet()) {
+            if (!new File(jar.getKey()).exists()) {
+                continue;
+            }
+            var entry = jar.getValue();
+            str.append(jar.getKey()).append("\t").append(entry._size).append("\t").append(entry._modified).append("\t")
+                .append(entry._module.getName()).append("\t").append(entry._module.getVersion() == null ? "" : entry._module.getVersion()).append("\n");
+        }
+        try {
+            var tmp = _cachePath.resolveSibling(_cachePath.getFileName() + ".tmp");
+            Files.write(tmp, str.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, _cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save module cache " + _cachePath + ": " + e);
+        }
+    }
+
+    public static List<Module> getSystemModules() {
+        if (_systemModules == null) {
+            _systemModules = loadSystemModules(new Repository().getRepositoryPath().resolve("system-modules.cache"));
+        }
+        return _systemModules;
+    }
+
+    private static List<Module> loadSystemModules(Path cachePath) {
+        var key = "java.home\t" + System.getProperty("java.home") + "\t" + Runtime.version();
+        try {
+            if (cachePath.toFile().exists()) {
+                var lines = Files.readAllLines(cachePath, StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(key)) {
+                    var modules = new ArrayList<Module>();
+                    for (var line: lines.subList(1, lines.size())) {
+                        var fields = line.split("\t", -1);
+                        modules.add(new Module(fields[0], fields[1].isEmpty() ? null : fields[1], URI.create(fields[2])));
+                    }
+                    return modules;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Discarding unreadable system module cache " + cachePath);
+        }
+        var modules = new ArrayList<Module>();
+        var str = new StringBuilder(key).append("\n");
+        for (var module: ModuleFinder.ofSystem().findAll()) {
+            var entry = toModule(module);
+            modules.add(entry);
+            str.append(entry.getName()).append("\t").append(entry.getVersion() == null ? "" : entry.getVersion()).append("\t")
+                .append(entry.getLocation()).append("\n");
+        }
+        try {
+            var tmp = Files.createTempFile(cachePath.getParent(), "system-modules", ".tmp");
+            Files.write(tmp, str.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save system module cache " + cachePath + ": " + e);
+        }
+        return modules;
+    }
+}
@@ -0,0 +1,281 @@
+package org.jpm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+public class ModuleCompiler implements AutoCloseable {
+    private Project _project;
+    private JavaCompiler _compiler;
+    private StandardJavaFileManager _fileManager;
+
+    public ModuleCompiler(Project project) {
+        _project = project;
+        _compiler = ToolProvider.getSystemJavaCompiler();
+        if (_compiler != null) {
+            _fileManager = _compiler.getStandardFileManager(null, Locale.getDefault(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public boolean isInProcess() {
+        return _compiler != null;
+    }
+
+    public List<Path> getSources() {
+        var sources = new ArrayList<Path>();
+        try (var files = Files.walk(_project.getModulePath())) {
+            files.filter(Files::isRegularFile)
+                .filter((file) -> file.getFileName().toString().endsWith(".java"))
+                .sorted()
+                .forEach(sources::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list sources of " + _project.getModulePath(), e);
+        }
+        return sources;
+    }
+
+    private List<String> getOptions() {
+        var libPath = _project.getLibraryPath();
+        var options = new ArrayList<String>();
+        options.add("-d");
+        options.add(_project.getBuildPath().toString());
+        options.add("--module-path");
+        options.add(libPath.resolve("main") + File.pathSeparator + libPath.resolve("transitive"));
+        options.add("--module-source-path");
+        options.add(_project.getSourcePath().toString());
+        options.add("--module");
+        options.add(_project.getProjectName());
+        options.add("--release");
+        options.add("11");
+        return options;
+    }
+
+    private String getFingerprint(Map<String, String> sourceHashes) {
+        var str = new StringBuilder();
+        str.append(Runtime.version()).append("\n");
+        str.append(String.join(" ", getOptions())).append("\n");
+        str.append(sourceHashes.get("module-info.java")).append("\n");
+        for (var libType: List.of("main", "transitive")) {
+            var files = _project.getLibraryPath().resolve(libType).toFile().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (var file: new TreeSet<>(List.of(files))) {
+                str.append(file.getName()).append(" ").append(file.length()).append(" ").append(file.lastModified()).append("\n");
+            }
+        }
+        return Hash.sha256(str.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path getClassPath(String className) {
+        return getOutputPath().resolve(className + ".class");
+    }
+
+    private Path getOutputPath() {
+        return _project.getBuildPath().resolve(_project.getProjectName());
+    }
+
+    private List<Path> getClassFiles() {
+        var classFiles = new ArrayList<Path>();
+        var outputPath = getOutputPath();
+        if (!outputPath.toFile().exists()) {
+            return classFiles;
+        }
+        try (var files = Files.walk(outputPath)) {
+            files.filter(Files::isRegularFile)
+                .filter((file) -> file.getFileName().toString().endsWith(".class"))
+                .filter((file) -> !file.getFileName().toString().equals("module-info.class"))
+                .forEach(classFiles::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list classes of " + outputPath, e);
+        }
+        return classFiles;
+    }
+
+    public boolean compileModule() {
+        var modulePath = _project.getModulePath();
+        var sources = getSources();
+        var sourceHashes = new TreeMap<String, String>();
+        for (var source: sources) {
+            try {
+                sourceHashes.put(modulePath.relativize(source).toString(), Hash.sha256(source));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + source, e);
+            }
+        }
+        var fingerprint = getFingerprint(sourceHashes);
+        var state = new CompileState(_project.getStatePath().resolve("compile.state"));
+        boolean full = !state.load() || !fingerprint.equals(state.getFingerprint());
+
+        var changed = new HashSet<String>();
+        var removed = new HashSet<String>();
+        if (!full) {
+            for (var source: sourceHashes.entrySet()) {
+                if (!source.getValue().equals(state.getSourceHashes().get(source.getKey()))) {
+                    changed.add(source.getKey());
+                }
+            }
+            for (var source: state.getSourceHashes().keySet()) {
+                if (!sourceHashes.containsKey(source)) {
+                    removed.add(source);
+                }
+            }
+            for (var entry: state.getClasses().values()) {
+                if (!getClassPath(entry.getName()).toFile().exists() && sourceHashes.containsKey(entry.getSource())) {
+                    changed.add(entry.getSource());
+                }
+            }
+            var touched = new HashSet<String>(changed);
+            touched.addAll(removed);
+            if (state.hasConstants(state.getClassesOf(touched))) {
+                System.out.println("Constants changed in module " + _project.getProjectName() + ", recompiling all sources");
+                full = true;
+            }
+        }
+        if (full) {
+            changed.clear();
+            removed.clear();
+            changed.addAll(sourceHashes.keySet());
+            for (var classFile: getClassFiles()) {
+                classFile.toFile().delete();
+            }
+            state.getClasses().clear();
+        }
+        if (changed.isEmpty() && removed.isEmpty()) {
+            System.out.println("Module " + _project.getProjectName() + " is up to date");
+            return true;
+        }
+
+        var stale = new HashSet<String>(changed);
+        stale.addAll(removed);
+        var staleClasses = state.getClassesOf(stale);
+        var recompile = new HashSet<String>(changed);
+        for (var dependent: state.getDependents(staleClasses)) {
+            recompile.add(state.getClasses().get(dependent).getSource());
+        }
+        recompile.removeAll(removed);
+        staleClasses.addAll(state.getClassesOf(recompile));
+        for (var className: staleClasses) {
+            getClassPath(className).toFile().delete();
+            state.getClasses().remove(className);
+        }
+        if (!full) {
+            System.out.println("Recompiling " + recompile.size() + " of " + sources.size() + " sources (" +
+                               changed.size() + " changed, " + removed.size() + " removed)");
+        }
+
+        var toCompile = new ArrayList<Path>();
+        for (var source: recompile) {
+            toCompile.add(modulePath.resolve(source));
+        }
+        toCompile.sort(null);
+        if (!compile(toCompile)) {
+            state.delete();
+            return false;
+        }
+
+        for (var classFile: getClassFiles()) {
+            var className = getOutputPath().relativize(classFile).toString();
+            className = className.substring(0, className.length() - 6).replace(File.separatorChar, '/');
+            if (state.getClasses().containsKey(className)) {
+                continue;
+            }
+            try {
+                var entry = CompileState.scan(classFile);
+                state.getClasses().put(entry.getName(), entry);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read " + classFile, e);
+            }
+        }
+        state.getSourceHashes().clear();
+        state.getSourceHashes().putAll(sourceHashes);
+        state.setFingerprint(fingerprint);
+        state.save();
+        return true;
+    }
+
+    public boolean compile(List<Path> sources) {
+        if (sources.isEmpty()) {
+            return true;
+        }
+        if (!isInProcess()) {
+            return fork(sources);
+        }
+        long start = System.nanoTime();
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        var units = _fileManager.getJavaFileObjectsFromPaths(sources);
+        var task = _compiler.getTask(null, _fileManager, diagnostics, getOptions(), null, units);
+        boolean success = task.call();
+        int errors = 0;
+        int warnings = 0;
+        for (var diagnostic: diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors++;
+            } else if (diagnostic.getKind() == Diagnostic.Kind.WARNING || diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
+                warnings++;
+            }
+            report(diagnostic);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Compiled " + sources.size() + " sources in " + millis + " ms (" + errors + " errors, " + warnings + " warnings)");
+        return success;
+    }
+
+    private void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+        var str = new StringBuilder();
+        if (diagnostic.getSource() != null) {
+            str.append(diagnostic.getSource().getName());
+            if (diagnostic.getLineNumber() != Diagnostic.NOPOS) {
+                str.append(":").append(diagnostic.getLineNumber());
+                str.append(":").append(diagnostic.getColumnNumber());
+            }
+            str.append(": ");
+        }
+        str.append(diagnostic.getKind().toString().toLowerCase(Locale.ROOT)).append(": ");
+        str.append(diagnostic.getMessage(Locale.getDefault()));
+        if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+            System.err.println(str);
+        } else {
+            System.out.println(str);
+        }
+    }
+
+    private boolean fork(List<Path> sources) {
+        var cmd = new ArrayList<String>();
+        cmd.add("javac");
+        cmd.addAll(getOptions());
+        for (var source: sources) {
+            cmd.add(source.toString());
+        }
+        var result = new Cmd(cmd).setStreaming(true).execute();
+        System.out.println("Forked javac for " + sources.size() + " sources in " + result.getWallNanos() / 1000000 + " ms" +
+                           (result.getCpuNanos() >= 0 ? " (" + result.getCpuNanos() / 1000000 + " ms cpu)" : ""));
+        return result.isSuccess();
+    }
+
+    public void close() {
+        if (_fileManager == null) {
+            return;
+        }
+        try {
+            _fileManager.close();
+        } catch (IOException e) {
+        }
+    }
+}
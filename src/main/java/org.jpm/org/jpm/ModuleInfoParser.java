@@ -1,35 +1,36 @@
 package org.jpm;
 
-import static java.util.stream.Collectors.toList;
-
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
-import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import javax.tools.ToolProvider;
 
-import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.ExportsTree;
 import com.sun.source.tree.ExpressionTree;
 import com.sun.source.tree.IdentifierTree;
 import com.sun.source.tree.MemberSelectTree;
 import com.sun.source.tree.ModuleTree;
 import com.sun.source.tree.ModuleTree.ModuleKind;
+import com.sun.source.tree.OpensTree;
 import com.sun.source.tree.ProvidesTree;
 import com.sun.source.tree.RequiresTree;
 import com.sun.source.tree.Tree;
-import com.sun.source.tree.TreeVisitor;
 import com.sun.source.tree.UsesTree;
 import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreeScanner;
 
+// Module declarations are parsed by a small lexer and recursive descent
+// parser. Declarations with annotations, unicode escapes or anything else
+// the parser does not understand are handed to javac instead. Results are
+// cached by path, size and modification time and replayed to the visitor.
 public class ModuleInfoParser {
     static final int ACC_OPEN = 0x0020;
     static final int ACC_TRANSITIVE = 0x0020;
@@ -44,15 +45,207 @@ public class ModuleInfoParser {
         public void visitProvides(String service, List<String> providers);
     }
 
-    static class ModuleHandler {
-        ModuleVisitor _moduleVisitor;
+    private static class Recorder implements ModuleVisitor {
+        List<Consumer<ModuleVisitor>> _events = new ArrayList<>();
 
-        ModuleHandler(ModuleVisitor moduleVisitor) {
-            _moduleVisitor = moduleVisitor;
+        public void visitModule(int modifiers, String name) {
+            _events.add((v) -> v.visitModule(modifiers, name));
+        }
+
+        public void visitRequires(int modifiers, String module) {
+            _events.add((v) -> v.visitRequires(modifiers, module));
+        }
+
+        public void visitExports(String packaze, List<String> toModules) {
+            _events.add((v) -> v.visitExports(packaze, toModules));
         }
 
-        private static void accept(TreeVisitor<?, ?> visitor, Tree node) {
-            node.accept(visitor, null);
+        public void visitOpens(String packaze, List<String> toModules) {
+            _events.add((v) -> v.visitOpens(packaze, toModules));
+        }
+
+        public void visitUses(String service) {
+            _events.add((v) -> v.visitUses(service));
+        }
+
+        public void visitProvides(String service, List<String> providers) {
+            _events.add((v) -> v.visitProvides(service, providers));
+        }
+    }
+
+    private static class Cached {
+        long _size;
+        long _modified;
+        List<Consumer<ModuleVisitor>> _events;
+    }
+
+    private static final Map<Path, Cached> _cache = new ConcurrentHashMap<>();
+
+    static class UnsupportedSyntaxException extends Exception {
+        UnsupportedSyntaxException(String message) {
+            super(message);
+        }
+    }
+
+    static class Parser {
+        private String _source;
+        private int _pos;
+        private String _token;
+
+        Parser(String source) {
+            _source = source;
+        }
+
+        private void skipWhitespaceAndComments() throws UnsupportedSyntaxException {
+            while (_pos < _source.length()) {
+                char c = _source.charAt(_pos);
+                if (Character.isWhitespace(c)) {
+                    _pos++;
+                } else if (_source.startsWith("//", _pos)) {
+                    int end = _source.indexOf('\n', _pos);
+                    _pos = end < 0 ? _source.length() : end + 1;
+                } else if (_source.startsWith("/*", _pos)) {
+                    int end = _source.indexOf("*/", _pos + 2);
+                    if (end < 0) {
+                        throw new UnsupportedSyntaxException("unterminated comment");
+                    }
+                    _pos = end + 2;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void next() throws UnsupportedSyntaxException {
+            skipWhitespaceAndComments();
+            if (_pos >= _source.length()) {
+                _token = null;
+                return;
+            }
+            int start = _pos;
+            char c = _source.charAt(_pos);
+            if (Character.isJavaIdentifierStart(c)) {
+                while (_pos < _source.length() && Character.isJavaIdentifierPart(_source.charAt(_pos))) {
+                    _pos++;
+                }
+            } else if (c == '.' || c == ';' || c == ',' || c == '{' || c == '}' || c == '*') {
+                _pos++;
+            } else {
+                throw new UnsupportedSyntaxException("unexpected '" + c + "'");
+            }
+            _token = _source.substring(start, _pos);
+        }
+
+        private boolean isIdentifier() {
+            return _token != null && Character.isJavaIdentifierStart(_token.charAt(0));
+        }
+
+        private boolean accept(String token) throws UnsupportedSyntaxException {
+            if (!token.equals(_token)) {
+                return false;
+            }
+            next();
+            return true;
+        }
+
+        private void expect(String token) throws UnsupportedSyntaxException {
+            if (!accept(token)) {
+                throw new UnsupportedSyntaxException("expected '" + token + "' but got '" + _token + "'");
+            }
+        }
+
+        private String qualifiedName() throws UnsupportedSyntaxException {
+            if (!isIdentifier()) {
+                throw new UnsupportedSyntaxException("expected name but got '" + _token + "'");
+            }
+            var name = new StringBuilder(_token);
+            next();
+            while (accept(".")) {
+                if (!isIdentifier()) {
+                    throw new UnsupportedSyntaxException("expected name but got '" + _token + "'");
+                }
+                name.append('.').append(_token);
+                next();
+            }
+            return name.toString();
+        }
+
+        private List<String> nameList() throws UnsupportedSyntaxException {
+            var names = new ArrayList<String>();
+            do {
+                names.add(qualifiedName());
+            } while (accept(","));
+            return names;
+        }
+
+        private boolean isModifier(String modifier) {
+            if (!modifier.equals(_token)) {
+                return false;
+            }
+            // "requires transitive;" names a module called transitive
+            int pos = _pos;
+            while (pos < _source.length() && Character.isWhitespace(_source.charAt(pos))) {
+                pos++;
+            }
+            return pos < _source.length() && _source.charAt(pos) != ';' && _source.charAt(pos) != '.';
+        }
+
+        void parse(ModuleVisitor visitor) throws UnsupportedSyntaxException {
+            next();
+            while (accept("import")) {
+                accept("static");
+                qualifiedName();
+                if (accept(".")) {
+                    expect("*");
+                }
+                expect(";");
+            }
+            int modifiers = accept("open") ? ACC_OPEN : 0;
+            expect("module");
+            visitor.visitModule(modifiers, qualifiedName());
+            expect("{");
+            while (!accept("}")) {
+                if (accept("requires")) {
+                    int flags = 0;
+                    for (;;) {
+                        if (isModifier("transitive")) {
+                            flags |= ACC_TRANSITIVE;
+                        } else if (isModifier("static")) {
+                            flags |= ACC_STATIC;
+                        } else {
+                            break;
+                        }
+                        next();
+                    }
+                    visitor.visitRequires(flags, qualifiedName());
+                } else if (accept("exports")) {
+                    var packaze = qualifiedName();
+                    visitor.visitExports(packaze, accept("to") ? nameList() : Collections.<String>emptyList());
+                } else if (accept("opens")) {
+                    var packaze = qualifiedName();
+                    visitor.visitOpens(packaze, accept("to") ? nameList() : Collections.<String>emptyList());
+                } else if (accept("uses")) {
+                    visitor.visitUses(qualifiedName());
+                } else if (accept("provides")) {
+                    var service = qualifiedName();
+                    expect("with");
+                    visitor.visitProvides(service, nameList());
+                } else {
+                    throw new UnsupportedSyntaxException("unexpected '" + _token + "'");
+                }
+                expect(";");
+            }
+            if (_token != null) {
+                throw new UnsupportedSyntaxException("unexpected '" + _token + "' after module declaration");
+            }
+        }
+    }
+
+    static class JavacHandler extends TreeScanner<Void, Void> {
+        private ModuleVisitor _moduleVisitor;
+
+        JavacHandler(ModuleVisitor moduleVisitor) {
+            _moduleVisitor = moduleVisitor;
         }
 
         private static String qualifiedString(Tree tree) {
@@ -71,92 +264,84 @@ public class ModuleInfoParser {
             if (trees == null) {
                 return Collections.<String>emptyList();
             }
-            return trees.stream().map(ModuleHandler::qualifiedString).collect(toList());
-        }
-
-        public void visitCompilationUnit(CompilationUnitTree node, TreeVisitor<?, ?> visitor) {
-            for (var decl: node.getTypeDecls()) {
-                if (!(decl instanceof ModuleTree)) {
-                    continue;
-                }
-                accept(visitor, decl);
+            var names = new ArrayList<String>();
+            for (var tree: trees) {
+                names.add(qualifiedString(tree));
             }
+            return names;
         }
 
-        public void visitModule(ModuleTree node, TreeVisitor<?, ?> visitor) {
+        @Override
+        public Void visitModule(ModuleTree node, Void p) {
             int modifiers = node.getModuleType() == ModuleKind.OPEN ? ACC_OPEN : 0;
             _moduleVisitor.visitModule(modifiers, qualifiedString(node.getName()));
-            node.getDirectives().forEach(n -> accept(visitor, n));
+            return scan(node.getDirectives(), p);
         }
 
-        public void visitRequires(RequiresTree node, TreeVisitor<?, ?> __) {
+        @Override
+        public Void visitRequires(RequiresTree node, Void p) {
             int modifiers = (node.isStatic()? ACC_STATIC: 0) | (node.isTransitive()? ACC_TRANSITIVE: 0);
             _moduleVisitor.visitRequires(modifiers, qualifiedString(node.getModuleName()));
+            return null;
         }
 
-        public void visitExports(ExportsTree node, TreeVisitor<?, ?> __) {
+        @Override
+        public Void visitExports(ExportsTree node, Void p) {
             _moduleVisitor.visitExports(qualifiedString(node.getPackageName()), asList(node.getModuleNames()));
+            return null;
         }
 
-        public void visitUses(UsesTree node, TreeVisitor<?, ?> __) {
+        @Override
+        public Void visitOpens(OpensTree node, Void p) {
+            _moduleVisitor.visitOpens(qualifiedString(node.getPackageName()), asList(node.getModuleNames()));
+            return null;
+        }
+
+        @Override
+        public Void visitUses(UsesTree node, Void p) {
             _moduleVisitor.visitUses(qualifiedString(node.getServiceName()));
+            return null;
         }
 
-        public void visitProvides(ProvidesTree node, TreeVisitor<?, ?> __) {
+        @Override
+        public Void visitProvides(ProvidesTree node, Void p) {
             _moduleVisitor.visitProvides(qualifiedString(node.getServiceName()), asList(node.getImplementationNames()));
+            return null;
         }
+    }
 
-        interface Visitee {
-            void visit(ModuleHandler handler, Tree node, TreeVisitor<?, ?> visitor);
-
-            static Visitee of(Method method) {
-                return (handler, node, visitor) -> {
-                    try {
-                        method.invoke(handler, node, visitor);
-                    } catch (IllegalAccessException e) {
-                        throw new AssertionError(e);
-                    } catch (InvocationTargetException e) {
-                        Throwable cause = e.getCause();
-                        if (cause instanceof RuntimeException) {
-                            throw (RuntimeException)cause;
-                        }
-                        if (cause instanceof Error) {
-                            throw (Error)cause;
-                        }
-                        throw new UndeclaredThrowableException(cause);
-                    }
-                };
+    static void parseWithJavac(Path moduleInfoPath, ModuleVisitor moduleVisitor) throws IOException {
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        try (var fileManager = compiler.getStandardFileManager(null, null, null)) {
+            var compilationUnits = fileManager.getJavaFileObjects(moduleInfoPath);
+            var task = (JavacTask)compiler.getTask(null, fileManager, null, null, null, compilationUnits);
+            for (var unit: task.parse()) {
+                unit.accept(new JavacHandler(moduleVisitor), null);
             }
         }
-
-        static final Map<String, Visitee> METHOD_MAP;
-        static {
-            METHOD_MAP = Arrays.stream(ModuleHandler.class.getMethods())
-                .filter(m -> m.getDeclaringClass() == ModuleHandler.class)
-                .collect(Collectors.toMap(Method::getName, ModuleHandler.Visitee::of));
-        }
     }
 
     public static void parse(Path moduleInfoPath, ModuleVisitor moduleVisitor) throws IOException {
-        var compiler = ToolProvider.getSystemJavaCompiler();
-        try(var fileManager = compiler.getStandardFileManager(null, null, null)) {
-            var compilationUnits = fileManager.getJavaFileObjects(moduleInfoPath);
-            var task = compiler.getTask(null, fileManager, null, null, null, compilationUnits);
-            var javacTask = (JavacTask)task;
-            var units = javacTask.parse();
-            var unit = units.iterator().next();
-
-            var moduleHandler = new ModuleHandler(moduleVisitor);
-            var visitor = (TreeVisitor<?,?>)Proxy.newProxyInstance(TreeVisitor.class.getClassLoader(), new Class<?>[]{ TreeVisitor.class },
-                                                                   (proxy, method, args) -> {
-                                                                       ModuleHandler.METHOD_MAP
-                                                                       .getOrDefault(method.getName(), (handler, node, v) -> { 
-                                                                               throw new AssertionError("Invalid node: " + node);
-                                                                           })
-                                                                       .visit(moduleHandler, (Tree)args[0], (TreeVisitor<?,?>)proxy);
-                                                                       return null;
-                                                                   });
-            unit.accept(visitor, null);
+        long size = Files.size(moduleInfoPath);
+        long modified = Files.getLastModifiedTime(moduleInfoPath).toMillis();
+        var cached = _cache.get(moduleInfoPath);
+        if (cached == null || cached._size != size || cached._modified != modified) {
+            var recorder = new Recorder();
+            var source = new String(Files.readAllBytes(moduleInfoPath), StandardCharsets.UTF_8);
+            try {
+                new Parser(source).parse(recorder);
+            } catch (UnsupportedSyntaxException e) {
+                recorder = new Recorder();
+                parseWithJavac(moduleInfoPath, recorder);
+            }
+            cached = new Cached();
+            cached._size = size;
+            cached._modified = modified;
+            cached._events = recorder._events;
+            _cache.put(moduleInfoPath, cached);
+        }
+        for (var event: cached._events) {
+            event.accept(moduleVisitor);
         }
     }
 }
@@ -1,8 +1,22 @@
 package org.jpm;
 
 public class MySQLConfig {
-    public static final String _host = "34.66.59.33";
-    public static final String _database = "jpm";
-    public static final String _user = "jpm";
-    public static final String _password = "jpm";
+    private static final String CENTRAL_HOST = "34.66.59.33";
+    private static final String CENTRAL_DATABASE = "jpm";
+
+    public static String _host = Settings.get("jpm.mysql.host", CENTRAL_HOST);
+    public static String _database = Settings.get("jpm.mysql.database", CENTRAL_DATABASE);
+    public static String _user = Settings.get("jpm.mysql.user", "jpm");
+    public static String _password = Settings.get("jpm.mysql.password", "jpm");
+    // A JDBC URL used instead of the MySQL server, e.g. the SQLite database of jpm serve
+    public static String _url = Settings.get("jpm.db.url", null);
+
+    public static boolean isCentral() {
+        return _url == null && _host.equals(CENTRAL_HOST) && _database.equals(CENTRAL_DATABASE);
+    }
+
+    // Names the metadata database without credentials
+    public static String getEndpoint() {
+        return _url != null ? _url.replaceAll("\\?.*", "") : "jdbc:mysql://" + _host + "/" + _database;
+    }
 }
@@ -0,0 +1,177 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Build phases, artifact downloads and metadata queries are reported as JFR
+// events, so they show up in any recording that enables the jpm category.
+// With --profile the same spans are also collected for the current command
+// and written as a Chrome trace event file.
+public class Profiler {
+    @Name("org.jpm.Phase")
+    @Label("Build Phase")
+    @Category("jpm")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("org.jpm.Download")
+    @Label("Artifact Download")
+    @Category("jpm")
+    static class DownloadEvent extends Event {
+        @Label("Artifact")
+        String artifact;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("org.jpm.Query")
+    @Label("Metadata Query")
+    @Category("jpm")
+    static class QueryEvent extends Event {
+        @Label("SQL")
+        String sql;
+
+        @Label("Rows")
+        long rows;
+    }
+
+    private static class Trace {
+        long _start = System.nanoTime();
+        List<String> _events = new ArrayList<>();
+    }
+
+    private static final InheritableThreadLocal<Trace> _trace = new InheritableThreadLocal<>();
+
+    public static class Span implements AutoCloseable {
+        private Event _event;
+        private String _category;
+        private String _name;
+        private long _start = System.nanoTime();
+        private long _count;
+        private boolean _failed;
+
+        Span(Event event, String category, String name) {
+            _event = event;
+            _category = category;
+            _name = name;
+            event.begin();
+        }
+
+        // Adds rows for a query or bytes for a download
+        public void add(long count) {
+            _count += count;
+        }
+
+        public void fail() {
+            _failed = true;
+        }
+
+        @Override
+        public void close() {
+            long end = System.nanoTime();
+            if (_event instanceof QueryEvent) {
+                ((QueryEvent)_event).rows = _count;
+            } else if (_event instanceof DownloadEvent) {
+                ((DownloadEvent)_event).bytes = _count;
+                ((DownloadEvent)_event).success = !_failed;
+            }
+            _event.commit();
+            var trace = _trace.get();
+            if (trace == null) {
+                return;
+            }
+            var str = new StringBuilder("{\"name\":");
+            appendString(str, _name);
+            str.append(",\"cat\":\"").append(_category).append("\",\"ph\":\"X\"");
+            str.append(",\"ts\":").append((_start - trace._start) / 1000);
+            str.append(",\"dur\":").append((end - _start) / 1000);
+            str.append(",\"pid\":1,\"tid\":").append(Thread.currentThread().getId());
+            if (!_category.equals("phase")) {
+                str.append(",\"args\":{\"").append(_category.equals("query") ? "rows" : "bytes").append("\":").append(_count);
+                str.append(",\"failed\":").append(_failed).append("}");
+            }
+            str.append("}");
+            synchronized (trace) {
+                trace._events.add(str.toString());
+            }
+        }
+    }
+
+    public static Span phase(String name) {
+        var event = new PhaseEvent();
+        event.phase = name;
+        return new Span(event, "phase", name);
+    }
+
+    public static Span download(String artifact) {
+        var event = new DownloadEvent();
+        event.artifact = artifact;
+        return new Span(event, "download", artifact);
+    }
+
+    public static Span query(String sql) {
+        var event = new QueryEvent();
+        event.sql = sql;
+        return new Span(event, "query", sql);
+    }
+
+    public static void start() {
+        _trace.set(new Trace());
+    }
+
+    public static void finish(Path tracePath) {
+        var trace = _trace.get();
+        _trace.remove();
+        if (trace == null) {
+            return;
+        }
+        var str = new StringBuilder("{\"traceEvents\":[\n");
+        synchronized (trace) {
+            for (int i = 0; i < trace._events.size(); i++) {
+                str.append(trace._events.get(i)).append(i + 1 < trace._events.size() ? ",\n" : "\n");
+            }
+        }
+        str.append("],\"displayTimeUnit\":\"ms\"}\n");
+        try {
+            tracePath.getParent().toFile().mkdirs();
+            Files.write(tracePath, str.toString().getBytes(StandardCharsets.UTF_8));
+            System.out.println("Wrote profile to " + tracePath);
+        } catch (IOException e) {
+            System.out.println("Could not write profile " + tracePath + ": " + e);
+        }
+    }
+
+    private static void appendString(StringBuilder str, String value) {
+        str.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                str.append('\\').append(c);
+            } else if (c == '\n') {
+                str.append("\\n");
+            } else if (c < 0x20) {
+                str.append(String.format("\\u%04x", (int)c));
+            } else {
+                str.append(c);
+            }
+        }
+        str.append('"');
+    }
+}
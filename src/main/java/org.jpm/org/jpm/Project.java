@@ -1,12 +1,16 @@
 package org.jpm;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.regex.Pattern;
 
 public class Project {
-    private Path calculateProjectPath() {
-        var path = Paths.get(System.getProperty("user.dir")).toAbsolutePath();
+    public static Path calculateProjectPath(Path workingDirectory) {
+        var path = workingDirectory.toAbsolutePath();
         var root = path.getRoot();
         while (path != null && !root.equals(path)) {
             if (path.resolve(".git").toFile().exists()) {
@@ -25,7 +29,14 @@ public class Project {
     private Path _libPath;
 
     public Project() {
-        _projectPath = calculateProjectPath();
+        this(Paths.get(System.getProperty("user.dir")));
+    }
+
+    public Project(Path workingDirectory) {
+        _projectPath = calculateProjectPath(workingDirectory);
+        if (_projectPath == null) {
+            throw new RuntimeException("Not inside a jpm project: " + workingDirectory);
+        }
         _sourcePath = _projectPath.resolve("src/main/java");
         _resourcePath = _projectPath.resolve("src/main/resources");
         _buildPath = _projectPath.resolve("build");
@@ -56,6 +67,12 @@ public class Project {
         return _libPath;
     }
 
+    public Path getStatePath() {
+        var statePath = _buildPath.resolve(".jpm");
+        statePath.toFile().mkdirs();
+        return statePath;
+    }
+
     public Path getModulePath() {
         for (var file: getSourcePath().toFile().listFiles()) {
             if (!file.getName().startsWith(".")) {
@@ -71,13 +88,46 @@ public class Project {
 
     private String _version;
 
+    private static final Pattern _versionTagPattern = Pattern.compile("v(\\d+\\.\\d+\\.\\d+).*");
+
+    // The version is the nearest vX.Y.Z tag reachable from HEAD. It is cached in
+    // build/.jpm/version by HEAD and the tag refs, and read from the enclosing
+    // .git directly unless the repository needs something the reader does not
+    // support.
     public String getProjectVersion() {
         if (_version != null) {
             return _version;
         }
+        var cachePath = getStatePath().resolve("version");
+        var dotGit = GitRepository.find(_projectPath);
+        if (dotGit != null) {
+            try (var git = GitRepository.open(dotGit)) {
+                var digest = Hash.newDigest();
+                digest.update(String.valueOf(git.getHead()).getBytes(StandardCharsets.UTF_8));
+                for (var tag: git.getTags().entrySet()) {
+                    digest.update(("\n" + tag.getKey() + " " + tag.getValue()).getBytes(StandardCharsets.UTF_8));
+                }
+                var key = Hash.toHex(digest.digest());
+                if (cachePath.toFile().exists()) {
+                    var fields = new String(Files.readAllBytes(cachePath), StandardCharsets.UTF_8).trim().split("\t");
+                    if (fields.length == 2 && fields[0].equals(key)) {
+                        _version = fields[1];
+                        return _version;
+                    }
+                }
+                var version = git.findNearestTag(_versionTagPattern);
+                _version = version == null ? "1.0.0" : version;
+                var tmp = cachePath.resolveSibling("version.tmp");
+                Files.write(tmp, (key + "\t" + _version + "\n").getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return _version;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not read version from .git, using git log: " + e.getMessage());
+            }
+        }
         var regex = Pattern.compile(".*tag\\: v(\\d+\\.\\d+\\.\\d+).*");
-        var result = Cmd.run("git log --simplify-by-decoration --decorate --pretty=oneline \"HEAD\"");
-        var lines = result.split("\n");
+        var result = new Cmd("git", "log", "--simplify-by-decoration", "--decorate", "--pretty=oneline", "HEAD").setDirectory(_projectPath).execute();
+        var lines = result.isSuccess() ? result.getOutput().split("\n") : new String[0];
         for (var line: lines) {
           var matcher = regex.matcher(line);
           if (matcher.matches()) {
@@ -89,6 +139,15 @@ public class Project {
         return _version;
     }
 
+    private DependencyDetector _dependencyDetector;
+
+    public DependencyDetector getDependencyDetector() {
+        if (_dependencyDetector == null) {
+            _dependencyDetector = new DependencyDetector(this);
+        }
+        return _dependencyDetector;
+    }
+
     public String getProjectJarName() {
         return getProjectName() + "-" + getProjectVersion() + ".jar";
     }
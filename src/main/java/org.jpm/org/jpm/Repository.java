@@ -1,7 +1,15 @@
 package org.jpm;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Repository {
     private Path calculateRepositoryPath() {
@@ -13,16 +21,22 @@ public class Repository {
     private Path _libPath;
     private Path _binPath;
     private Path _sharePath;
+    private Path _cachePath;
+    private Map<String, String> _cacheIndex;
+    private Path _cacheIndexPath;
+    private long _cacheIndexModified;
 
     public Repository() {
         _repositoryPath = calculateRepositoryPath();
         _libPath = _repositoryPath.resolve("lib");
         _binPath = _repositoryPath.resolve("bin");
         _sharePath = _repositoryPath.resolve("share");
+        _cachePath = _repositoryPath.resolve("cache");
         _repositoryPath.toFile().mkdirs();
         _libPath.toFile().mkdirs();
         _binPath.toFile().mkdirs();
         _sharePath.toFile().mkdirs();
+        _cachePath.toFile().mkdirs();
     }
 
     public Path getRepositoryPath() {
@@ -41,10 +55,122 @@ public class Repository {
         return _sharePath;
     }
 
+    // Metadata snapshots and the artifact cache index of endpoints other than
+    // the central one are kept apart, so that nothing fetched from one is
+    // served for another
+    private static String getEndpointSuffix() {
+        if (MySQLConfig.isCentral()) {
+            return "";
+        }
+        var endpoint = MySQLConfig.getEndpoint().getBytes(StandardCharsets.UTF_8);
+        return "-" + Hash.sha256(endpoint).substring(0, 16);
+    }
+
+    public Path getSnapshotPath() {
+        return _repositoryPath.resolve("metadata" + getEndpointSuffix() + ".snapshot");
+    }
+
+    public Path getDaemonPath() {
+        var daemonPath = _repositoryPath.resolve("daemon");
+        daemonPath.toFile().mkdirs();
+        return daemonPath;
+    }
+
     public Path getSharePath(Project project) {
         String projectName = project.getProjectName();
         Path result = getSharePath().resolve(projectName);
         result.toFile().mkdirs();
         return result;
     }
+
+    public Path getCachePath() {
+        return _cachePath;
+    }
+
+    private Path getCacheIndexPath() {
+        return _cachePath.resolve("index" + getEndpointSuffix());
+    }
+
+    private synchronized Map<String, String> getCacheIndex() {
+        var indexPath = getCacheIndexPath();
+        var indexFile = indexPath.toFile();
+        if (_cacheIndex != null && indexPath.equals(_cacheIndexPath) && indexFile.lastModified() == _cacheIndexModified) {
+            return _cacheIndex;
+        }
+        _cacheIndex = new HashMap<>();
+        _cacheIndexPath = indexPath;
+        _cacheIndexModified = indexFile.lastModified();
+        if (!indexFile.exists()) {
+            return _cacheIndex;
+        }
+        try {
+            for (var line: Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                var fields = line.split("\t");
+                if (fields.length == 3) {
+                    _cacheIndex.put(fields[0] + "-" + fields[1], fields[2]);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read artifact cache index: " + e);
+        }
+        return _cacheIndex;
+    }
+
+    public Path findCachedJar(String name, String version) {
+        var sha = getCacheIndex().get(name + "-" + version);
+        if (sha != null) {
+            var blob = _cachePath.resolve(sha);
+            if (blob.toFile().exists()) {
+                return blob;
+            }
+        }
+        // Jars in ~/.jpm/lib carry no endpoint, so only central lookups fall back to them
+        var installed = _libPath.resolve(name + "-" + version + ".jar");
+        if (MySQLConfig.isCentral() && installed.toFile().exists()) {
+            return addToCache(name, version, installed);
+        }
+        return null;
+    }
+
+    public Path addToCache(String name, String version, Path jar) {
+        try {
+            var sha = Hash.sha256(jar);
+            var blob = _cachePath.resolve(sha);
+            if (!blob.toFile().exists()) {
+                var tmp = Files.createTempFile(_cachePath, sha, ".tmp");
+                Files.copy(jar, tmp, StandardCopyOption.REPLACE_EXISTING);
+                tmp.toFile().setWritable(false, false);
+                Files.move(tmp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            var line = name + "\t" + version + "\t" + sha + "\n";
+            try (var lockFile = new RandomAccessFile(_cachePath.resolve("index.lock").toFile(), "rw");
+                 var lock = lockFile.getChannel().lock()) {
+                Files.write(getCacheIndexPath(), line.getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            synchronized (this) {
+                getCacheIndex().put(name + "-" + version, sha);
+            }
+            return blob;
+        } catch (IOException e) {
+            System.out.println("Could not cache " + jar + ": " + e);
+            return null;
+        }
+    }
+
+    public boolean materialize(Path cachedJar, Path destination) {
+        try {
+            Files.deleteIfExists(destination);
+            try {
+                Files.createLink(destination, cachedJar);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(cachedJar, destination);
+                destination.toFile().setWritable(true);
+                return false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not materialize " + cachedJar + " as " + destination, e);
+        }
+    }
 }
@@ -0,0 +1,155 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class ResolutionCache {
+    private static final int MAX_KEYS = 8;
+    private static final Pattern _jarPattern = Pattern.compile("(.*)-(\\d+\\.\\d+\\.\\d+)\\.jar");
+
+    public static class Entry {
+        private String _libType;
+        private String _name;
+        private String _version;
+
+        public Entry(String libType, String name, String version) {
+            _libType = libType;
+            _name = name;
+            _version = version;
+        }
+
+        public String getLibType() {
+            return _libType;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public String getVersion() {
+            return _version;
+        }
+
+        public String getJarName() {
+            return _name + "-" + _version + ".jar";
+        }
+    }
+
+    private Path _cachePath;
+    private Path _libraryPath;
+    private Map<String, List<Entry>> _entries;
+
+    public ResolutionCache(Path cachePath, Path libraryPath) {
+        _cachePath = cachePath;
+        _libraryPath = libraryPath;
+    }
+
+    public static ResolutionCache of(Project project) {
+        return new ResolutionCache(project.getStatePath().resolve("resolution.cache"), project.getLibraryPath());
+    }
+
+    // Keys include the metadata sequence, so that resolutions made before newer
+    // versions were published are not reused
+    public static String getKey(String kind, List<String> inputs, long sequence) {
+        var digest = Hash.newDigest();
+        digest.update(kind.getBytes(StandardCharsets.UTF_8));
+        for (var input: inputs) {
+            digest.update((byte)0);
+            digest.update(input.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte)0);
+        digest.update(("sequence " + sequence).getBytes(StandardCharsets.UTF_8));
+        return Hash.toHex(digest.digest());
+    }
+
+    private void load() {
+        _entries = new LinkedHashMap<>();
+        if (!_cachePath.toFile().exists()) {
+            return;
+        }
+        try {
+            List<Entry> entries = null;
+            for (var line: Files.readAllLines(_cachePath, StandardCharsets.UTF_8)) {
+                var fields = line.split("\t", -1);
+                if (fields[0].equals("key")) {
+                    entries = new ArrayList<>();
+                    _entries.put(fields[1], entries);
+                } else {
+                    entries.add(new Entry(fields[0], fields[1], fields[2]));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Discarding unreadable resolution cache " + _cachePath);
+            _entries.clear();
+        }
+    }
+
+    public List<Entry> get(String key) {
+        if (_entries == null) {
+            load();
+        }
+        return _entries.get(key);
+    }
+
+    public void put(String key, List<Entry> entries) {
+        if (_entries == null) {
+            load();
+        }
+        _entries.remove(key);
+        _entries.put(key, entries);
+        while (_entries.size() > MAX_KEYS) {
+            _entries.remove(_entries.keySet().iterator().next());
+        }
+        var str = new StringBuilder();
+        for (var cached: _entries.entrySet()) {
+            str.append("key\t").append(cached.getKey()).append("\n");
+            for (var entry: cached.getValue()) {
+                str.append(entry._libType).append("\t").append(entry._name).append("\t").append(entry._version).append("\n");
+            }
+        }
+        try {
+            var tmp = _cachePath.resolveSibling(_cachePath.getFileName() + ".tmp");
+            Files.write(tmp, str.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, _cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save resolution cache " + _cachePath + ": " + e);
+        }
+    }
+
+    public List<Entry> listLibraries() {
+        var entries = new ArrayList<Entry>();
+        for (var libType: List.of("main", "transitive")) {
+            var names = _libraryPath.resolve(libType).toFile().list();
+            if (names == null) {
+                continue;
+            }
+            Arrays.sort(names);
+            for (var name: names) {
+                var matcher = _jarPattern.matcher(name);
+                if (matcher.matches()) {
+                    entries.add(new Entry(libType, matcher.group(1), matcher.group(2)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    public List<Entry> getMissing(List<Entry> entries) {
+        var missing = new ArrayList<Entry>();
+        for (var entry: entries) {
+            if (!_libraryPath.resolve(entry._libType).resolve(entry.getJarName()).toFile().exists()) {
+                missing.add(entry);
+            }
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,158 @@
+package org.jpm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class ResolutionSession implements AutoCloseable, Resolver.Provider {
+    private boolean _offline;
+    private JpmDatabase _db;
+    private Map<String, JpmFile> _jpms = new HashMap<>();
+    private Map<String, JpmFile> _latestJpms = new HashMap<>();
+    private Set<String> _expanded = new HashSet<>();
+    private int _queries;
+    private int _hits;
+
+    public ResolutionSession() {
+        this(false);
+    }
+
+    public ResolutionSession(boolean offline) {
+        _offline = offline;
+    }
+
+    // Resolves against the given database instead of the central repository
+    public ResolutionSession(JpmDatabase db) {
+        _db = db;
+    }
+
+    public boolean isOffline() {
+        return _offline;
+    }
+
+    private static String getKey(String name, String version) {
+        return name + "-" + version;
+    }
+
+    private JpmDatabase getDatabase() {
+        if (_db == null) {
+            _db = JpmDatabase.remoteDatabase();
+            _db.setOffline(_offline);
+        }
+        return _db;
+    }
+
+    private void remember(JpmFile jpmFile) {
+        _jpms.put(getKey(jpmFile.getMain().getName(), jpmFile.getMain().getVersion()), jpmFile);
+    }
+
+    public JpmFile getJpm(String name) {
+        if (_latestJpms.containsKey(name)) {
+            _hits++;
+            return _latestJpms.get(name);
+        }
+        _queries++;
+        var jpmFile = getDatabase().getJpm(name);
+        _latestJpms.put(name, jpmFile);
+        if (jpmFile != null) {
+            remember(jpmFile);
+        }
+        return jpmFile;
+    }
+
+    public JpmFile getLatestJpm(String name, int major, int minor) {
+        var key = name + "@" + major + "." + minor;
+        if (_latestJpms.containsKey(key)) {
+            _hits++;
+            return _latestJpms.get(key);
+        }
+        _queries++;
+        var jpmFile = getDatabase().getLatestJpm(name, major, minor);
+        _latestJpms.put(key, jpmFile);
+        if (jpmFile != null) {
+            remember(jpmFile);
+        }
+        return jpmFile;
+    }
+
+    public JpmFile getJpm(String name, String version) {
+        if (version == null) {
+            return getJpm(name);
+        }
+        var key = getKey(name, version);
+        if (_jpms.containsKey(key)) {
+            _hits++;
+            return _jpms.get(key);
+        }
+        _queries++;
+        var jpmFile = getDatabase().getJpm(name, version);
+        _jpms.put(key, jpmFile);
+        return jpmFile;
+    }
+
+    public Map<String, JpmFile> getClosure(Collection<JpmFile.JpmReference> roots) {
+        var missing = new ArrayList<JpmFile.JpmReference>();
+        for (var root: roots) {
+            var key = getKey(root.getName(), root.getVersion());
+            if (!_expanded.contains(key) && !(_jpms.containsKey(key) && _jpms.get(key) == null)) {
+                missing.add(root);
+            }
+        }
+        if (!missing.isEmpty()) {
+            _queries++;
+            var fetched = getDatabase().getJpmClosure(missing);
+            for (var jpmFile: fetched.values()) {
+                remember(jpmFile);
+            }
+            _expanded.addAll(fetched.keySet());
+            for (var root: missing) {
+                var key = getKey(root.getName(), root.getVersion());
+                if (!fetched.containsKey(key)) {
+                    _jpms.put(key, null);
+                }
+            }
+        } else if (!roots.isEmpty()) {
+            _hits++;
+        }
+
+        var closure = new LinkedHashMap<String, JpmFile>();
+        var stack = new ArrayList<JpmFile.JpmReference>(roots);
+        while (!stack.isEmpty()) {
+            var jpmRef = stack.remove(stack.size() - 1);
+            var key = getKey(jpmRef.getName(), jpmRef.getVersion());
+            var jpmFile = _jpms.get(key);
+            if (jpmFile == null || closure.containsKey(key)) {
+                continue;
+            }
+            closure.put(key, jpmFile);
+            stack.addAll(jpmFile.getMainDependencies());
+        }
+        return closure;
+    }
+
+    public long getSequence() {
+        return getDatabase().getSequence();
+    }
+
+    public int getQueryCount() {
+        return _queries;
+    }
+
+    public int getCacheHitCount() {
+        return _hits;
+    }
+
+    public void close() {
+        if (_queries + _hits > 0) {
+            System.out.println("Resolved metadata with " + _queries + " queries (" + _hits + " served from session)");
+        }
+        if (_db != null) {
+            _db.close();
+            _db = null;
+        }
+    }
+}
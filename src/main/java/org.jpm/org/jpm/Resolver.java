@@ -0,0 +1,221 @@
+package org.jpm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// A dependency "foo-1.2.3" is satisfied by any foo-1.x.y >= 1.2.3. Every package
+// gets the lowest version that satisfies all of its current requirers, so
+// selections only move up. When a package is upgraded, the requirements of the
+// version it replaced are retracted, and packages nobody requires any more are
+// dropped. A major version clash is fixed by upgrading a requirer to its
+// latest compatible release if that release agrees with the others. Otherwise
+// the requires chains of both sides are reported.
+public class Resolver {
+    public interface Provider {
+        JpmFile getJpm(String name, String version);
+        JpmFile getLatestJpm(String name, int major, int minor);
+    }
+
+    static class Node {
+        String _name;
+        JpmFile _selected;
+        long _version = -1;
+        Node _cause;
+        Map<Node, Long> _incoming = new HashMap<>();
+        boolean _queued;
+
+        Node(String name) {
+            _name = name;
+        }
+    }
+
+    private Provider _provider;
+    private Map<String, Node> _nodes = new HashMap<>();
+    private ArrayDeque<Node> _queue = new ArrayDeque<>();
+    private Set<String> _exhausted = new HashSet<>();
+    private Node _root;
+    private int _selections;
+    private int _upgrades;
+
+    public Resolver(Provider provider) {
+        _provider = provider;
+    }
+
+    public int getSelectionCount() {
+        return _selections;
+    }
+
+    public int getUpgradeCount() {
+        return _upgrades;
+    }
+
+    public Map<String, JpmFile> resolve(String rootName, List<JpmFile.JpmReference> roots) {
+        _root = new Node(rootName);
+        for (var root: roots) {
+            require(_root, root);
+        }
+        Node node;
+        while ((node = _queue.poll()) != null) {
+            node._queued = false;
+            update(node);
+            if (_selections > 64L * (_nodes.size() + 16)) {
+                throw new RuntimeException("Dependency resolution did not converge after " + _selections + " selections");
+            }
+        }
+        var selected = new TreeMap<String, JpmFile>();
+        for (var entry: _nodes.values()) {
+            if (entry._selected != null) {
+                selected.put(entry._name, entry._selected);
+            }
+        }
+        return selected;
+    }
+
+    private Node getNode(String name) {
+        return _nodes.computeIfAbsent(name, Node::new);
+    }
+
+    private void enqueue(Node node) {
+        if (!node._queued) {
+            node._queued = true;
+            _queue.add(node);
+        }
+    }
+
+    private void require(Node from, JpmFile.JpmReference ref) {
+        var node = getNode(ref.getName());
+        node._incoming.merge(from, Version.pack(ref.getVersion()), Math::max);
+        enqueue(node);
+    }
+
+    private void retract(Node from, JpmFile.JpmReference ref) {
+        var node = _nodes.get(ref.getName());
+        if (node != null && node._incoming.remove(from) != null) {
+            enqueue(node);
+        }
+    }
+
+    private void select(Node node, JpmFile jpm, Node cause) {
+        if (node._selected != null) {
+            for (var dep: node._selected.getMainDependencies()) {
+                retract(node, dep);
+            }
+        }
+        node._selected = jpm;
+        node._version = jpm == null ? -1 : Version.pack(jpm.getMain().getVersion());
+        node._cause = cause;
+        if (jpm != null) {
+            _selections++;
+            for (var dep: jpm.getMainDependencies()) {
+                require(node, dep);
+            }
+        }
+    }
+
+    private void update(Node node) {
+        if (node._incoming.isEmpty()) {
+            if (node._selected != null) {
+                select(node, null, null);
+            }
+            return;
+        }
+        Node cause = null;
+        long min = -1;
+        int major = -1;
+        for (var incoming: node._incoming.entrySet()) {
+            long version = incoming.getValue();
+            if (major >= 0 && Version.getMajor(version) != major) {
+                if (resolveConflict(node)) {
+                    return;
+                }
+                throw new RuntimeException(explain(node));
+            }
+            major = Version.getMajor(version);
+            if (version > min) {
+                min = version;
+                cause = incoming.getKey();
+            }
+        }
+        if (node._selected != null && node._version >= min && Version.getMajor(node._version) == major) {
+            return;
+        }
+        var jpm = _provider.getJpm(node._name, Version.toString(min));
+        if (jpm == null) {
+            throw new RuntimeException("Unknown jpm: " + node._name + "-" + Version.toString(min) + "\n" +
+                                       "    " + getChain(cause) + " -> " + node._name + "-" + Version.toString(min));
+        }
+        select(node, jpm, cause);
+    }
+
+    private boolean resolveConflict(Node node) {
+        int newest = -1;
+        for (var version: node._incoming.values()) {
+            newest = Math.max(newest, Version.getMajor(version));
+        }
+        boolean upgraded = false;
+        for (var requirer: new ArrayList<>(node._incoming.keySet())) {
+            if (Version.getMajor(node._incoming.get(requirer)) == newest) {
+                continue;
+            }
+            if (requirer == _root || requirer._selected == null) {
+                return upgraded;
+            }
+            int requirerMajor = Version.getMajor(requirer._version);
+            var key = requirer._name + "@" + requirerMajor + ":" + node._name + "@" + newest;
+            if (_exhausted.contains(key)) {
+                return upgraded;
+            }
+            var candidate = _provider.getLatestJpm(requirer._name, requirerMajor, -1);
+            if (candidate == null || Version.pack(candidate.getMain().getVersion()) <= requirer._version || !agrees(candidate, node._name, newest)) {
+                _exhausted.add(key);
+                return upgraded;
+            }
+            _upgrades++;
+            select(requirer, candidate, requirer._cause);
+            upgraded = true;
+        }
+        enqueue(node);
+        return upgraded;
+    }
+
+    private static boolean agrees(JpmFile jpm, String name, int major) {
+        for (var dep: jpm.getMainDependencies()) {
+            if (dep.getName().equals(name)) {
+                return Version.getMajor(Version.pack(dep.getVersion())) == major;
+            }
+        }
+        return true;
+    }
+
+    private String getChain(Node node) {
+        var chain = new ArrayList<String>();
+        var seen = new HashSet<Node>();
+        for (var current = node; current != null && current != _root && seen.add(current); current = current._cause) {
+            chain.add(current._selected == null ? current._name : current._name + "-" + current._selected.getMain().getVersion());
+        }
+        var str = new StringBuilder(_root._name);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            str.append(" -> ").append(chain.get(i));
+        }
+        return str.toString();
+    }
+
+    private String explain(Node node) {
+        var str = new StringBuilder("Incompatible versions of " + node._name + " are required:");
+        var chains = new TreeSet<String>();
+        for (var incoming: node._incoming.entrySet()) {
+            chains.add(getChain(incoming.getKey()) + " -> " + node._name + "-" + Version.toString(incoming.getValue()));
+        }
+        for (var chain: chains) {
+            str.append("\n    ").append(chain);
+        }
+        return str.toString();
+    }
+}
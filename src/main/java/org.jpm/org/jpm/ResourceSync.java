@@ -0,0 +1,189 @@
+package org.jpm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResourceSync {
+    static class Entry {
+        long _size;
+        long _lastModified;
+        String _hash;
+    }
+
+    private Path _resourcePath;
+    private Path _outputPath;
+    private Path _manifestPath;
+    private Path _excluded;
+    private boolean _hashing = Boolean.getBoolean("jpm.resources.hash");
+    private volatile boolean _linking = !"false".equals(System.getProperty("jpm.resources.link"));
+
+    public ResourceSync(Path resourcePath, Path outputPath, Path manifestPath) {
+        _resourcePath = resourcePath;
+        _outputPath = outputPath;
+        _manifestPath = manifestPath;
+    }
+
+    public static ResourceSync of(Project project) {
+        var sync = new ResourceSync(project.getResourcePath(),
+                                    project.getBuildPath().resolve(project.getProjectName()),
+                                    project.getStatePath().resolve("resources.manifest"));
+        sync.setExcluded(project.getResourcePath().resolve("main.jpm"));
+        return sync;
+    }
+
+    public void setExcluded(Path excluded) {
+        _excluded = excluded;
+    }
+
+    public void setHashing(boolean hashing) {
+        _hashing = hashing;
+    }
+
+    public void setLinking(boolean linking) {
+        _linking = linking;
+    }
+
+    private Map<String, Entry> load() {
+        var entries = new TreeMap<String, Entry>();
+        if (!_manifestPath.toFile().exists()) {
+            return entries;
+        }
+        try {
+            for (var line: Files.readAllLines(_manifestPath, StandardCharsets.UTF_8)) {
+                var fields = line.split("\t", -1);
+                var entry = new Entry();
+                entry._size = Long.parseLong(fields[1]);
+                entry._lastModified = Long.parseLong(fields[2]);
+                entry._hash = fields[3].isEmpty() ? null : fields[3];
+                entries.put(fields[0], entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Discarding unreadable resource manifest " + _manifestPath);
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void save(Map<String, Entry> entries) {
+        var str = new StringBuilder();
+        for (var entry: entries.entrySet()) {
+            var value = entry.getValue();
+            str.append(entry.getKey()).append("\t").append(value._size).append("\t").append(value._lastModified);
+            str.append("\t").append(value._hash == null ? "" : value._hash).append("\n");
+        }
+        try {
+            var tmp = _manifestPath.resolveSibling(_manifestPath.getFileName() + ".tmp");
+            Files.write(tmp, str.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, _manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save resource manifest " + _manifestPath + ": " + e);
+        }
+    }
+
+    private boolean install(Path src, Path dst) throws IOException {
+        Files.createDirectories(dst.getParent());
+        Files.deleteIfExists(dst);
+        if (_linking) {
+            try {
+                Files.createLink(dst, src);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                _linking = false;
+            }
+        }
+        Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING);
+        return false;
+    }
+
+    public void sync() {
+        long start = System.nanoTime();
+        var previous = load();
+        var current = new TreeMap<String, Entry>();
+        var changed = new ArrayList<String>();
+        try (var files = Files.walk(_resourcePath)) {
+            files.filter(Files::isRegularFile).filter((file) -> !file.equals(_excluded)).forEach((file) -> {
+                var name = _resourcePath.relativize(file).toString().replace(File.separatorChar, '/');
+                var entry = new Entry();
+                entry._size = file.toFile().length();
+                entry._lastModified = file.toFile().lastModified();
+                current.put(name, entry);
+                var old = previous.get(name);
+                if (old == null || !_outputPath.resolve(name).toFile().exists() || old._size != entry._size) {
+                    changed.add(name);
+                } else if (old._lastModified != entry._lastModified) {
+                    if (_hashing && old._hash != null) {
+                        entry._hash = old._hash;
+                    }
+                    changed.add(name);
+                } else {
+                    entry._hash = old._hash;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Could not list resources in " + _resourcePath, e);
+        }
+
+        var copied = new AtomicInteger();
+        var linked = new AtomicInteger();
+        var unchanged = new AtomicInteger(current.size() - changed.size());
+        var pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        try {
+            var pending = new ArrayList<Future<?>>();
+            for (var name: changed) {
+                var entry = current.get(name);
+                pending.add(pool.submit(() -> {
+                    var src = _resourcePath.resolve(name);
+                    var dst = _outputPath.resolve(name);
+                    if (_hashing) {
+                        var previousHash = entry._hash;
+                        entry._hash = Hash.sha256(src);
+                        if (entry._hash.equals(previousHash) && dst.toFile().exists()) {
+                            unchanged.incrementAndGet();
+                            return null;
+                        }
+                    }
+                    if (install(src, dst)) {
+                        linked.incrementAndGet();
+                    } else {
+                        copied.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (var future: pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Couldn't copy resource: " + e.getCause(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while copying resources", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        int removed = 0;
+        for (var name: previous.keySet()) {
+            if (!current.containsKey(name)) {
+                _outputPath.resolve(name).toFile().delete();
+                removed++;
+            }
+        }
+        save(current);
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("Synced " + current.size() + " resources in " + millis + " ms (" + copied + " copied, " +
+                           linked + " linked, " + removed + " removed, " + unchanged + " unchanged)");
+    }
+}
@@ -0,0 +1,99 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+// A local stand-in for the central repository: artifacts are served over
+// FTP from <directory>/files and metadata lives in the SQLite database
+// <directory>/jpm.db, which clients open directly. The settings that point
+// jpm at it are written to <directory>/settings.properties.
+public class ServeCommand implements AutoCloseable {
+    public static final String USER = "jpm";
+    public static final String PASSWORD = "jpm";
+
+    private Path _directory;
+    private int _port;
+    private LocalFtpServer _ftp;
+    private String _host;
+    private CountDownLatch _stopped = new CountDownLatch(1);
+
+    public ServeCommand(Path directory, int port) {
+        _directory = directory.toAbsolutePath();
+        _port = port;
+    }
+
+    public Path getDirectory() {
+        return _directory;
+    }
+
+    public String getHost() {
+        return _host;
+    }
+
+    public int getFtpPort() {
+        return _ftp.getPort();
+    }
+
+    public LocalFtpServer getFtpServer() {
+        return _ftp;
+    }
+
+    // WAL and a busy timeout let concurrent publishers share the file
+    public String getDatabaseUrl() {
+        return "jdbc:sqlite:" + _directory.resolve("jpm.db") + "?journal_mode=WAL&busy_timeout=10000";
+    }
+
+    public Path getSettingsPath() {
+        return _directory.resolve("settings.properties");
+    }
+
+    public void start() {
+        try {
+            Files.createDirectories(_directory.resolve("files").resolve("jpm"));
+            try (var db = new JpmDatabase(getDatabaseUrl(), null)) {
+                db.open();
+            }
+            var address = InetAddress.getByName(Settings.get("jpm.serve.address", InetAddress.getLoopbackAddress().getHostAddress()));
+            _host = address.isAnyLocalAddress() ? InetAddress.getLocalHost().getHostName() : address.getHostAddress();
+            _ftp = new LocalFtpServer(_directory.resolve("files"), address, _port, USER, PASSWORD);
+            _ftp.start();
+            var settings = new Properties();
+            settings.setProperty("jpm.ftp.host", _host);
+            settings.setProperty("jpm.ftp.port", "" + getFtpPort());
+            settings.setProperty("jpm.ftp.user", USER);
+            settings.setProperty("jpm.ftp.password", PASSWORD);
+            settings.setProperty("jpm.db.url", getDatabaseUrl());
+            try (OutputStream out = Files.newOutputStream(getSettingsPath())) {
+                settings.store(out, "Settings for the jpm repository served from " + _directory);
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Could not start local repository in " + _directory + ": " + e.getMessage(), e);
+        }
+    }
+
+    public void run() {
+        start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        System.out.println("Serving artifacts from " + _directory.resolve("files") + " on ftp://" + _host + ":" + getFtpPort());
+        System.out.println("Metadata database " + getDatabaseUrl());
+        System.out.println("Point jpm at it with: export JPM_SETTINGS=" + getSettingsPath());
+        try {
+            _stopped.await();
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+
+    public void close() {
+        if (_ftp != null) {
+            _ftp.close();
+        }
+        _stopped.countDown();
+    }
+}
@@ -0,0 +1,71 @@
+package org.jpm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+// A setting such as jpm.ftp.host is looked up as a system property, then as
+// an environment variable (JPM_FTP_HOST), then in ~/.jpm/settings.properties
+// or the file named by jpm.settings (JPM_SETTINGS).
+public class Settings {
+    private static volatile Properties _file;
+
+    private static String toEnvironmentName(String key) {
+        return key.toUpperCase().replace('.', '_');
+    }
+
+    private static String lookup(String key) {
+        var value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(toEnvironmentName(key));
+        }
+        return value;
+    }
+
+    public static Path getSettingsPath() {
+        var path = lookup("jpm.settings");
+        if (path != null) {
+            return Paths.get(path);
+        }
+        return Paths.get(System.getProperty("user.home")).toAbsolutePath().resolve(".jpm").resolve("settings.properties");
+    }
+
+    private static Properties getFile() {
+        if (_file == null) {
+            var properties = new Properties();
+            var path = getSettingsPath();
+            if (path.toFile().exists()) {
+                try (InputStream in = Files.newInputStream(path)) {
+                    properties.load(in);
+                } catch (IOException e) {
+                    throw new RuntimeException("Could not read settings " + path + ": " + e.getMessage(), e);
+                }
+            }
+            _file = properties;
+        }
+        return _file;
+    }
+
+    public static String get(String key, String defaultValue) {
+        var value = lookup(key);
+        if (value == null) {
+            value = getFile().getProperty(key);
+        }
+        return value == null || value.isEmpty() ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        var value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Setting " + key + " is not a number: " + value);
+        }
+    }
+}
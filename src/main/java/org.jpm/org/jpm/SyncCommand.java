@@ -0,0 +1,15 @@
+package org.jpm;
+
+public class SyncCommand {
+    private boolean _full;
+
+    public SyncCommand(boolean full) {
+        _full = full;
+    }
+
+    public void run() {
+        try (var db = JpmDatabase.remoteDatabase()) {
+            db.syncSnapshot(_full);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jpm;
+
+public final class Version implements Comparable<Version> {
+    private static final int BITS = 21;
+    private static final long MASK = (1L << BITS) - 1;
+
+    private final long _packed;
+
+    private Version(long packed) {
+        _packed = packed;
+    }
+
+    public static Version of(int major, int minor, int patch) {
+        return new Version(pack(major, minor, patch));
+    }
+
+    public static Version fromPacked(long packed) {
+        return new Version(packed);
+    }
+
+    public static Version parse(String version) {
+        return new Version(pack(version));
+    }
+
+    public static long pack(int major, int minor, int patch) {
+        if (major < 0 || minor < 0 || patch < 0 || major > MASK || minor > MASK || patch > MASK) {
+            throw new RuntimeException("Version out of range " + major + "." + minor + "." + patch);
+        }
+        return ((long)major << (2 * BITS)) | ((long)minor << BITS) | patch;
+    }
+
+    public static long pack(String version) {
+        long packed = 0;
+        long component = 0;
+        int components = 0;
+        int digits = 0;
+        for (int i = 0; i <= version.length(); i++) {
+            char c = i < version.length() ? version.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                component = component * 10 + (c - '0');
+                if (component > MASK) {
+                    throw new RuntimeException("Version out of range " + version);
+                }
+                digits++;
+            } else if (c == '.' && digits > 0 && components < 3) {
+                packed = (packed << BITS) | component;
+                components++;
+                component = 0;
+                digits = 0;
+            } else {
+                throw new RuntimeException("Invalid version " + version);
+            }
+        }
+        if (components != 3) {
+            throw new RuntimeException("Invalid version " + version);
+        }
+        return packed;
+    }
+
+    public static int getMajor(long packed) {
+        return (int)(packed >>> (2 * BITS));
+    }
+
+    public static int getMinor(long packed) {
+        return (int)((packed >>> BITS) & MASK);
+    }
+
+    public static int getPatch(long packed) {
+        return (int)(packed & MASK);
+    }
+
+    public static String toString(long packed) {
+        return "" + getMajor(packed) + "." + getMinor(packed) + "." + getPatch(packed);
+    }
+
+    public int getMajor() {
+        return getMajor(_packed);
+    }
+
+    public int getMinor() {
+        return getMinor(_packed);
+    }
+
+    public int getPatch() {
+        return getPatch(_packed);
+    }
+
+    public long getPacked() {
+        return _packed;
+    }
+
+    public boolean isCompatibleWith(Version other) {
+        return getMajor() == other.getMajor();
+    }
+
+    @Override
+    public int compareTo(Version other) {
+        return Long.compare(_packed, other._packed);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Version && ((Version)o)._packed == _packed;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(_packed);
+    }
+
+    @Override
+    public String toString() {
+        return toString(_packed);
+    }
+}